@@ -16,8 +16,17 @@
  *******************************************************************************/
 package fr.cirad.mgdb.exporting;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -31,12 +40,100 @@ public abstract class AbstractExportWritingThread extends Thread
 	/** The Constant LOG. */
 	static final Logger LOG = Logger.getLogger(AbstractExportWritingThread.class);
 	
+	/** Pool shared by all exports, so that they neither compete with the JVM-wide ForkJoinPool.commonPool nor multiply threads. When its queue is full, chunks get written by the thread submitting them, which slows reading down accordingly */
+	private static final ExecutorService exportExecutor = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2), new ThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy()) {{ allowCoreThreadTimeOut(true); }};
+	
+	/** When set, gets flushed after each chunk */
+	private OutputStream streamingTarget = null;
+	
+	/** Completes once the last submitted chunk is written: each chunk is chained to it so that chunks get written in submission order even though the pool is shared */
+	private CompletableFuture<Void> lastChunkWritten = CompletableFuture.completedFuture(null);
+	
+	/** Whether this writer overrides run() and reads markerRunsToWrite, as writers did before writeChunk was introduced */
+	private final boolean fOverridesRun;
+	
+	/**
+	 * The chunk being written, only set for writers overriding run() rather than writeChunk.
+	 * @deprecated override writeChunk instead, which receives the chunk as an argument
+	 */
+	@Deprecated
 	protected Collection<Collection<VariantRunData>> markerRunsToWrite;
 	
-	public CompletableFuture<Void> writeRuns(Collection<Collection<VariantRunData>> markerRunsToWrite) {
+	protected AbstractExportWritingThread() {
+		boolean fOverridesRun;
+		try {
+			fOverridesRun = getClass().getMethod("run").getDeclaringClass() != AbstractExportWritingThread.class;
+		}
+		catch (NoSuchMethodException nsme) {
+			fOverridesRun = false;
+		}
+		this.fOverridesRun = fOverridesRun;
+	}
+	
+	private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ExportWriter-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
+	/**
+	 * Enables streaming: the given stream (typically the archive being sent as the HTTP response) gets flushed after each chunk, so that the client
+	 * receives data as soon as it is written (the servlet container then switches to chunked transfer) instead of once buffers fill up.
+	 * Only relevant for formats written in the order ExportManager provides data, i.e. marker-oriented ones. Memory usage remains bounded since
+	 * ExportManager waits for each chunk to be written (and thus sent) before submitting the next one.
+	 *
+	 * @param streamingTarget the stream to flush after each chunk (null to disable streaming)
+	 */
+	public void setStreamingTarget(OutputStream streamingTarget) {
+		this.streamingTarget = streamingTarget;
+	}
+	
+	/**
+	 * Asynchronously writes a chunk of runs, grouped by variant, once previously submitted chunks have been written.
+	 *
+	 * @param markerRunsToWrite the runs to write (must not be modified by the caller afterwards)
+	 * @return the future to wait for before writing the next chunk
+	 */
+	public synchronized CompletableFuture<Void> writeRuns(Collection<Collection<VariantRunData>> markerRunsToWrite) {
+		final Collection<Collection<VariantRunData>> chunk = Collections.unmodifiableCollection(markerRunsToWrite);
+		final OutputStream chunkStreamingTarget = streamingTarget;
+		lastChunkWritten = lastChunkWritten.thenRunAsync(() -> {
+			writeChunk(chunk);
+			if (chunkStreamingTarget != null)
+				try {
+					chunkStreamingTarget.flush();
+				}
+				catch (IOException ioe) {
+					throw new UncheckedIOException("Unable to stream export chunk", ioe);
+				}
+		}, exportExecutor);
+		return lastChunkWritten;
+	}
+	
+	/**
+	 * Writes a chunk of runs, grouped by variant. Implementations are expected to override it. The default one supports writers overriding run() instead.
+	 *
+	 * @param markerRunsToWrite the runs to write
+	 */
+	@SuppressWarnings("deprecation")
+	protected void writeChunk(Collection<Collection<VariantRunData>> markerRunsToWrite) {
+		if (!fOverridesRun)
+			throw new UnsupportedOperationException(getClass().getName() + " must override writeChunk");
 		this.markerRunsToWrite = markerRunsToWrite;
-		return CompletableFuture.runAsync(this);
+		run();
 	}
 	
-	public abstract void run();
+	/**
+	 * Writes markerRunsToWrite. Only kept for callers running writers as threads, overriding writeChunk is preferred.
+	 */
+	@Override
+	@SuppressWarnings("deprecation")
+	public void run() {
+		writeChunk(markerRunsToWrite);
+	}
 }
\ No newline at end of file
@@ -16,9 +16,13 @@
  *******************************************************************************/
 package fr.cirad.mgdb.exporting;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -40,13 +44,15 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.Collation;
 
+import fr.cirad.mgdb.exporting.tools.ParallelDeflateZipOutputStream;
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
 import fr.cirad.mgdb.model.mongo.maintypes.Individual;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
-import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.mgdb.model.mongo.subtypes.AbstractVariantData;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
 import fr.cirad.mgdb.model.mongodao.MgdbDao;
 import fr.cirad.tools.Helper;
+import fr.cirad.tools.mongo.ModuleStatisticsManager;
 import fr.cirad.tools.security.base.AbstractTokenManager;
 
 /**
@@ -60,6 +66,7 @@ public interface IExportHandler
 	
 	static final Document projectionDoc = new Document(VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE, 1).append(VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE, 1);	
 	static final Document sortDoc = new Document(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE, 1).append(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE, 1);
+	static final Document ordinalSortDoc = new Document(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, 1).append(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE, 1);
 	static final Collation collationObj = Collation.builder().numericOrdering(true).locale("en_US").build();
 	
 	/** The Constant nMaxChunkSizeInMb. */
@@ -129,21 +136,33 @@ public interface IExportHandler
 	}
 	
 	public static MongoCursor<Document> getMarkerCursorWithCorrectCollation(MongoCollection<Document> varColl, Document varQuery, Document customProjectionDoc, int nQueryChunkSize) {
-		return varColl.find(varQuery).projection(customProjectionDoc == null ? projectionDoc : customProjectionDoc).sort(sortDoc).noCursorTimeout(true).collation(collationObj).batchSize(nQueryChunkSize).iterator();
+		boolean fUseSequenceOrdinals = MgdbDao.hasSequenceOrdinalIndex(varColl);	// if so, plain numeric sorting is equivalent to sorting sequence names with a numeric collation
+		return varColl.find(varQuery).projection(customProjectionDoc == null ? projectionDoc : customProjectionDoc).sort(fUseSequenceOrdinals ? ordinalSortDoc : sortDoc).noCursorTimeout(true).collation(fUseSequenceOrdinals ? null : collationObj).batchSize(nQueryChunkSize).iterator();
 	}
 
+	/**
+	 * Creates the archive output stream: entries are deflated in parallel, unless set to STORED (ready-to-export files that look already compressed are stored).
+	 *
+	 * @param outputStream the output stream
+	 * @param readyToExportFiles files to add to the archive right away
+	 * @return the zip output stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
 	public static ZipOutputStream createArchiveOutputStream(OutputStream outputStream, Map<String, InputStream> readyToExportFiles) throws IOException {
-        ZipOutputStream zos = new ZipOutputStream(outputStream);
+        ZipOutputStream zos = new ParallelDeflateZipOutputStream(outputStream);
 
         if (readyToExportFiles != null) {
+            byte[] dataBlock = new byte[ParallelDeflateZipOutputStream.COPY_BUFFER_SIZE];
             for (String readyToExportFile : readyToExportFiles.keySet()) {
-                zos.putNextEntry(new ZipEntry(readyToExportFile));
+                ZipEntry entry = new ZipEntry(readyToExportFile);
+                if (ParallelDeflateZipOutputStream.isAlreadyCompressed(readyToExportFile))
+                    entry.setMethod(ZipEntry.STORED);
+                zos.putNextEntry(entry);
                 InputStream inputStream = readyToExportFiles.get(readyToExportFile);
-                byte[] dataBlock = new byte[1024];
-                int count = inputStream.read(dataBlock, 0, 1024);
+                int count = inputStream.read(dataBlock, 0, dataBlock.length);
                 while (count != -1) {
                     zos.write(dataBlock, 0, count);
-                    count = inputStream.read(dataBlock, 0, 1024);
+                    count = inputStream.read(dataBlock, 0, dataBlock.length);
                 }
                 zos.closeEntry();
             }
@@ -152,10 +171,32 @@ public interface IExportHandler
 	}
 	
 	public static int computeQueryChunkSize(MongoTemplate mongoTemplate, long nExportedVariantCount) {
-		Number avgObjSize = (Number) mongoTemplate.getDb().runCommand(new Document("collStats", mongoTemplate.getCollectionName(VariantRunData.class))).get("avgObjSize");
-		return (int) Math.max(1, Math.min(nExportedVariantCount / 20 /* no more than 5% at a time */, (nMaxChunkSizeInMb*1024*1024 / avgObjSize.doubleValue())));
+		return computeQueryChunkSize(mongoTemplate, nExportedVariantCount, null);
+	}
+
+	/**
+	 * Computes the number of variants to query at a time so that each chunk weighs about nMaxChunkSizeInMb, based on the expected size of the data retrieved for the exported samples.
+	 *
+	 * @param mongoTemplate the mongo template
+	 * @param nExportedVariantCount the exported variant count
+	 * @param samplesToExport the samples to export (null for all)
+	 * @return the query chunk size
+	 */
+	public static int computeQueryChunkSize(MongoTemplate mongoTemplate, long nExportedVariantCount, Collection<GenotypingSample> samplesToExport) {
+		double nBytesPerVariant = ModuleStatisticsManager.get(mongoTemplate).estimateRetrievedBytesPerVariant(samplesToExport);
+		return (int) Math.max(1, Math.min(nExportedVariantCount / 20 /* no more than 5% at a time */, nBytesPerVariant <= 0 ? Integer.MAX_VALUE : (nMaxChunkSizeInMb*1024*1024 / nBytesPerVariant)));
 	}
 	
+	/**
+	 * Writes individual metadata as a tab-separated table, straight into the given stream (typically an archive entry) through a bounded buffer. The stream is flushed but not closed.
+	 *
+	 * @param sModule the module
+	 * @param sExportingUser the user who launched the export
+	 * @param exportedIndividuals the exported individuals
+	 * @param individualMetadataFieldsToExport metadata fields to export for individuals
+	 * @param os the output stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
 	public static void writeMetadataFile(String sModule, String sExportingUser, Collection<String> exportedIndividuals, Collection<String> individualMetadataFieldsToExport, OutputStream os) throws IOException {
 		Collection<Individual> listInd = MgdbDao.getInstance().loadIndividualsWithAllMetadata(sModule, sExportingUser, null, exportedIndividuals).values();
         LinkedHashSet<String> mdHeaders = new LinkedHashSet<>();	// definite header collection (avoids empty columns)
@@ -163,16 +204,21 @@ public interface IExportHandler
         	for (String key : individualMetadataFieldsToExport)
         		if (!mdHeaders.contains(key) && !Helper.isNullOrEmptyString(ind.getAdditionalInfo().get(key)))
         			mdHeaders.add(key);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64 * 1024);
         for (String headerKey : mdHeaders)
-        	os.write(("\t" + headerKey).getBytes());
-        os.write("\n".getBytes());
+        	writer.write("\t" + headerKey);
+        writer.write("\n");
         
         for (Individual ind : listInd) {
-        	 os.write(ind.getId().getBytes());
-            for (String headerKey : mdHeaders)
-            	os.write(("\t" + Helper.nullToEmptyString(ind.getAdditionalInfo().get(headerKey))).getBytes());
-            os.write("\n".getBytes());
+        	writer.write(ind.getId());
+            for (String headerKey : mdHeaders) {
+            	writer.write("\t");
+            	writer.write(Helper.nullToEmptyString(ind.getAdditionalInfo().get(headerKey)));
+            }
+            writer.write("\n");
         }
+        writer.flush();
 	}
 
 	/**
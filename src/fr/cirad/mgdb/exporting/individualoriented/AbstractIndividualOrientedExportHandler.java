@@ -21,8 +21,11 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -30,6 +33,14 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -46,9 +57,11 @@ import com.mongodb.client.MongoCollection;
 import fr.cirad.mgdb.exporting.AbstractExportWritingThread;
 import fr.cirad.mgdb.exporting.IExportHandler;
 import fr.cirad.mgdb.exporting.tools.ExportManager;
+import fr.cirad.mgdb.exporting.tools.SegmentedSpillFile;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
-import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.subtypes.CompiledVcfAnnotationFilters;
+import fr.cirad.mgdb.model.mongo.subtypes.GenotypeExportPlan;
 import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
 import fr.cirad.tools.AlphaNumericComparator;
 import fr.cirad.tools.ProgressIndicator;
@@ -65,6 +78,16 @@ public abstract class AbstractIndividualOrientedExportHandler implements IExport
 	
 	/** The individual oriented export handlers. */
 	static private TreeMap<String, AbstractIndividualOrientedExportHandler> individualOrientedExportHandlers = null;
+	
+	/** The Constant MIN_INDIVIDUALS_PER_FORMATTING_TASK. */
+	static final private int MIN_INDIVIDUALS_PER_FORMATTING_TASK = 20;
+	
+	/** Pool shared by all exports for formatting chunks' genotypes, individuals being partitioned among its threads */
+	static final private ExecutorService individualFormattingExecutor = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+		Thread t = new Thread(r, "IndividualGenotypeFormatter");
+		t.setDaemon(true);
+		return t;
+	}) {{ allowCoreThreadTimeOut(true); }};
 		
 	/**
 	 * Export data.
@@ -125,85 +148,137 @@ public abstract class AbstractIndividualOrientedExportHandler implements IExport
 		final MongoTemplate mongoTemplate = MongoTemplateManager.get(sModule);
 
 		final Map<Integer, String> sampleIdToIndividualMap = samplesToExport.stream().collect(Collectors.toMap(GenotypingSample::getId, sp -> sp.getIndividual()));
+		final List<Integer> sortedSampleIDs = sampleIdToIndividualMap.keySet().stream().sorted().collect(Collectors.toList());	// looking wanted samples up rather than iterating over records' contents spares decoding unwanted genotypes
+		final String[] individualNames = individualPositions.keySet().toArray(new String[individualPositions.size()]);
+		final List<Integer>[] individualSampleIDs = new List[individualNames.length];
+		for (Integer sampleId : sortedSampleIDs) {
+			int individualIndex = individualPositions.get(sampleIdToIndividualMap.get(sampleId));
+			if (individualSampleIDs[individualIndex] == null)
+				individualSampleIDs[individualIndex] = new ArrayList<>();
+			individualSampleIDs[individualIndex].add(sampleId);
+		}
+		final CompiledVcfAnnotationFilters annotationFilters = new CompiledVcfAnnotationFilters(samplesToExport, individuals1, annotationFieldThresholds, individuals2, annotationFieldThresholds2);
+		final GenotypeExportPlan genotypeExportPlan = new GenotypeExportPlan(samplesToExport, individualPositions, individuals1, individuals2, annotationFieldThresholds, annotationFieldThresholds2);	// completes incomplete allele lists once per variant even though formatting tasks share runs
 		final AtomicInteger initialStringBuilderCapacity = new AtomicInteger();
-
-		int nQueryChunkSize = IExportHandler.computeQueryChunkSize(mongoTemplate, markerCount);
+		int nQueryChunkSize = IExportHandler.computeQueryChunkSize(mongoTemplate, markerCount, samplesToExport);
 		MongoCollection collWithPojoCodec = mongoTemplate.getDb().withCodecRegistry(ExportManager.pojoCodecRegistry).getCollection(tmpVarCollName != null ? tmpVarCollName : mongoTemplate.getCollectionName(VariantRunData.class));
 
+		final SegmentedSpillFile spillFile = new SegmentedSpillFile(exportID.replaceAll("\\|", "&curren;") + "-", files.length);	// chunks are appended to a single file, individual files are only filled once all chunks have been processed (deleted in the finally block below)
+
 		AbstractExportWritingThread writingThread = new AbstractExportWritingThread() {
-			public void run() {
-				StringBuilder[] individualGenotypeBuffers = new StringBuilder[individualPositions.size()];	// keeping all files open leads to failure (see ulimit command), keeping them closed and reopening them each time we need to write a genotype is too time consuming: so our compromise is to reopen them only once per chunk
+			protected void writeChunk(Collection<Collection<VariantRunData>> markerRunsToWrite) {
 				try
 				{
-				    markerRunsToWrite.forEach(runsToWrite -> {
-						if (progress.isAborted() || progress.getError() != null)
-							return;
+					// individuals are partitioned among formatting tasks, each of them working on its own buffers
+					int nTaskCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), individualNames.length / MIN_INDIVIDUALS_PER_FORMATTING_TASK));
+					List<Future<byte[][]>> taskResults = new ArrayList<>(nTaskCount);
+					for (int nTask = 0; nTask < nTaskCount; nTask++) {
+						final int nFirstIndividual = (int) ((long) individualNames.length * nTask / nTaskCount), nIndividualCount = (int) ((long) individualNames.length * (nTask + 1) / nTaskCount) - nFirstIndividual;
+						Callable<byte[][]> task = () -> formatIndividualGenotypes(markerRunsToWrite, nFirstIndividual, nIndividualCount);
+						taskResults.add(nTaskCount == 1 ? CompletableFuture.completedFuture(task.call()) : individualFormattingExecutor.submit(task));
+					}
+
+					// append genotypes collected in this chunk to the spill file, as one segment per individual
+					byte[][] segments = new byte[individualNames.length][];
+					int nIndividualIndex = 0;
+					for (Future<byte[][]> taskResult : taskResults)
+						try {
+							for (byte[] segment : taskResult.get())
+								segments[nIndividualIndex++] = segment;
+						}
+						catch (ExecutionException ee) {
+							throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+						}
+					if (genotypeExportPlan.hasPendingRepairs())
+						genotypeExportPlan.applyRepairs(mongoTemplate);
+					if (!progress.isAborted() && progress.getError() == null)
+						spillFile.appendChunk(segments);
+				}
+				catch (Exception e)
+				{
+					if (progress.getError() == null)	// only log this once
+						LOG.debug("Error creating temp files", e);
+					progress.setError("Error creating temp files: " + e.getMessage());
+				}
+			}
 
-						HashMap<String, String> genotypeStringCache = new HashMap<>();
-						LinkedHashSet<String>[] individualGenotypes = new LinkedHashSet[individualPositions.size()];
-		                if (runsToWrite != null)
-		                	for (Object vrd : runsToWrite) {
-		                    	VariantRunData run = (VariantRunData) vrd;
-								for (Integer sampleId : run.getSampleGenotypes().keySet()) {
-	                                String individualId = sampleIdToIndividualMap.get(sampleId);
-	                                Integer individualIndex = individualPositions.get(individualId);
-	                                if (individualIndex == null)
-	                                    continue;   // unwanted sample
+			/**
+			 * Formats a chunk's genotypes for a range of individuals.
+			 *
+			 * @param markerRunsToWrite the runs to write, grouped by variant
+			 * @param nFirstIndividual index of the first individual to process
+			 * @param nIndividualCount number of individuals to process
+			 * @return one segment per individual in the range
+			 */
+			private byte[][] formatIndividualGenotypes(Collection<Collection<VariantRunData>> markerRunsToWrite, int nFirstIndividual, int nIndividualCount) {
+				StringBuilder[] individualGenotypeBuffers = new StringBuilder[nIndividualCount];	// keeping all files open leads to failure (see ulimit command), reopening each of them for every chunk is too time consuming
+			    for (Collection<VariantRunData> runsToWrite : markerRunsToWrite) {
+					if (progress.isAborted() || progress.getError() != null)
+						break;
 
+					HashMap<String, String> genotypeStringCache = new HashMap<>();
+					LinkedHashSet<String>[] individualGenotypes = new LinkedHashSet[nIndividualCount];
+	                if (runsToWrite != null)
+	                	for (VariantRunData run : runsToWrite)
+	                		for (int i = 0; i < nIndividualCount; i++) {
+								for (Integer sampleId : individualSampleIDs[nFirstIndividual + i]) {
 									SampleGenotype sampleGenotype = run.getSampleGenotypes().get(sampleId);
-									if (!VariantData.gtPassesVcfAnnotationFilters(individualId, sampleGenotype, individuals1, annotationFieldThresholds, individuals2, annotationFieldThresholds2))
+									if (sampleGenotype == null)
+										continue;	// sample not involved in this run
+
+									if (!annotationFilters.passes(sampleId, sampleGenotype))
 										continue;	// skip genotype
 
 				                    String exportedGT = genotypeStringCache.get(sampleGenotype.getCode());
 				                    if (exportedGT == null) {
-				                    	exportedGT = StringUtils.join(run.safelyGetAllelesFromGenotypeCode(sampleGenotype.getCode(), mongoTemplate), ' ');
+				                    	exportedGT = StringUtils.join(genotypeExportPlan.getAlleles(run, sampleGenotype.getCode(), mongoTemplate), ' ');
 				                    	genotypeStringCache.put(sampleGenotype.getCode(), exportedGT);
 				                    }
-									
-									if (individualGenotypes[individualIndex] == null)
-										individualGenotypes[individualIndex] = new LinkedHashSet<String>();
-									individualGenotypes[individualIndex].add(exportedGT);
+
+									if (individualGenotypes[i] == null)
+										individualGenotypes[i] = new LinkedHashSet<String>();
+									individualGenotypes[i].add(exportedGT);
 								}
-		                	}
+	                		}
 
-						for (String individual : individualPositions.keySet()) {
-							int individualIndex = individualPositions.get(individual);
-							if (individualGenotypeBuffers[individualIndex] == null)
-								individualGenotypeBuffers[individualIndex] = new StringBuilder(initialStringBuilderCapacity.get() == 0 ? (int) (3 * markerCount) : initialStringBuilderCapacity.get());	// we are about to write individual's first genotype for this chunk
+					for (int i = 0; i < nIndividualCount; i++) {
+						if (individualGenotypeBuffers[i] == null)
+							individualGenotypeBuffers[i] = new StringBuilder(initialStringBuilderCapacity.get() == 0 ? (int) (3 * markerCount) : initialStringBuilderCapacity.get());	// we are about to write individual's first genotype
 
-							if (individualGenotypes[individualIndex] == null)
-								individualGenotypeBuffers[individualIndex].append(LINE_SEPARATOR);	// missing data
-							else {
-								int j = 0;
-								for (String storedIndividualGenotype : individualGenotypes[individualIndex])
-									individualGenotypeBuffers[individualIndex].append(storedIndividualGenotype).append((j++ == individualGenotypes[individualIndex].size() - 1 ? LINE_SEPARATOR : "|"));
-							}
-							if (initialStringBuilderCapacity.get() == 0)
-							    initialStringBuilderCapacity.set(individualGenotypeBuffers[individualIndex].length());
+						if (individualGenotypes[i] == null)
+							individualGenotypeBuffers[i].append(LINE_SEPARATOR);	// missing data
+						else {
+							int j = 0;
+							for (String storedIndividualGenotype : individualGenotypes[i])
+								individualGenotypeBuffers[i].append(storedIndividualGenotype).append((j++ == individualGenotypes[i].size() - 1 ? LINE_SEPARATOR : "|"));
 						}
-					});
-
-					// write genotypes collected in this chunk to each individual's file
-					for (String individual : individualPositions.keySet()) {
-						int individualIndex = individualPositions.get(individual);
-						BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(files[individualIndex], true));
-						if (individualGenotypeBuffers[individualIndex] != null)
-							os.write(individualGenotypeBuffers[individualIndex].toString().getBytes());
-	
-						os.close();
+						if (initialStringBuilderCapacity.get() == 0)
+						    initialStringBuilderCapacity.compareAndSet(0, individualGenotypeBuffers[i].length());
 					}
 				}
-				catch (Exception e)
-				{
-					if (progress.getError() == null)	// only log this once
-						LOG.debug("Error creating temp files", e);
-					progress.setError("Error creating temp files: " + e.getMessage());
-				}
+
+				byte[][] segments = new byte[nIndividualCount][];
+				for (int i = 0; i < nIndividualCount; i++)
+					if (individualGenotypeBuffers[i] != null)
+						segments[i] = individualGenotypeBuffers[i].toString().getBytes();
+				return segments;
 			}
 		};
 		
-		ExportManager exportManager = new ExportManager(mongoTemplate, collWithPojoCodec, VariantRunData.class, varQuery, samplesToExport, true, nQueryChunkSize, writingThread, markerCount, null, progress);
-		exportManager.readAndWrite();
+		try {
+			ExportManager exportManager = new ExportManager(mongoTemplate, collWithPojoCodec, VariantRunData.class, varQuery, samplesToExport, true, nQueryChunkSize, writingThread, markerCount, null, progress);
+			exportManager.readAndWrite();
+
+			// stream each individual's segments, in chunk order, to its file
+			if (!progress.isAborted() && progress.getError() == null)
+				for (int individualIndex = 0; individualIndex < files.length; individualIndex++)
+					try (FileChannel individualChannel = FileChannel.open(files[individualIndex].toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+						spillFile.transferSlotTo(individualIndex, individualChannel);
+					}
+		}
+		finally {
+			spillFile.close();
+		}
 		
 	 	if (!progress.isAborted())
 	 		LOG.info("createExportFiles took " + (System.currentTimeMillis() - before)/1000d + "s to process " + markerCount + " variants and " + files.length + " individuals");
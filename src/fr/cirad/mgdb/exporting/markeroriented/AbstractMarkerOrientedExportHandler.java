@@ -38,6 +38,7 @@ import fr.cirad.tools.ProgressIndicator;
 
 /**
  * The Class AbstractMarkerOrientedExportHandler.
+ * Data being written in the order ExportManager provides it, implementations may stream it to the client as it gets exported, by passing the archive output stream to their writing thread's setStreamingTarget.
  */
 public abstract class AbstractMarkerOrientedExportHandler implements IExportHandler
 {
@@ -26,9 +26,13 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
@@ -37,6 +41,7 @@ import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.codecs.pojo.IntKeyMapPropertyCodecProvider;
 import org.bson.codecs.pojo.PojoCodecProvider;
+import org.bson.codecs.pojo.SampleGenotypeCodec;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -44,17 +49,22 @@ import org.springframework.data.mongodb.core.query.Query;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Collation;
 
 import fr.cirad.mgdb.exporting.AbstractExportWritingThread;
 import fr.cirad.mgdb.exporting.IExportHandler;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingProject;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
 import fr.cirad.mgdb.model.mongo.subtypes.AbstractVariantData;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
+import fr.cirad.mgdb.model.mongodao.PositionKey;
 import fr.cirad.tools.AlphaNumericComparator;
 import fr.cirad.tools.Helper;
 import fr.cirad.tools.ProgressIndicator;
@@ -71,22 +81,42 @@ public class ExportManager
     
     static public final AlphaNumericComparator<String> alphaNumericStringComparator = new AlphaNumericComparator<String>();
     
-    static public final Comparator<VariantRunData> vrdComparator = new Comparator<VariantRunData>() {
-        @Override
-        public int compare(VariantRunData vrd1, VariantRunData vrd2) {
-            if (vrd1.getReferencePosition() == null) {
+    static public final Comparator<VariantRunData> vrdComparator = vrdComparator(alphaNumericStringComparator);
+    
+    /**
+     * Creates a comparator sorting runs by position.
+     *
+     * @param sequenceComparator the comparator to sort sequence names with
+     * @return the run comparator
+     */
+    static public Comparator<VariantRunData> vrdComparator(final Comparator<String> sequenceComparator) {
+        return new Comparator<VariantRunData>() {
+            @Override
+            public int compare(VariantRunData vrd1, VariantRunData vrd2) {
+                if (vrd1.getReferencePosition() == null) {
+                    if (vrd2.getReferencePosition() == null)
+                        return vrd1.getId().getVariantId().compareTo(vrd2.getId().getVariantId());     // none is positioned
+                    return -1;    // only vrd2 is positioned
+                }
                 if (vrd2.getReferencePosition() == null)
-                    return vrd1.getId().getVariantId().compareTo(vrd2.getId().getVariantId());     // none is positioned
-                return -1;    // only vrd2 is positioned
-            }
-            if (vrd2.getReferencePosition() == null)
-                return 1;    // only vrd1 is positioned
+                    return 1;    // only vrd1 is positioned
             
-            // both are positioned
-            int chrComparison = alphaNumericStringComparator.compare(vrd1.getReferencePosition().getSequence(), vrd2.getReferencePosition().getSequence());
-            return chrComparison != 0 ? chrComparison : (int) (vrd1.getReferencePosition().getStartSite() - vrd2.getReferencePosition().getStartSite());
-        }
-    };
+                // both are positioned
+                Integer so1 = vrd1.getReferencePosition().getSequenceOrdinal(), so2 = vrd2.getReferencePosition().getSequenceOrdinal();
+                int chrComparison = so1 != null && so2 != null ? Integer.compare(so1, so2) /* ordinals follow the same order */ : sequenceComparator.compare(vrd1.getReferencePosition().getSequence(), vrd2.getReferencePosition().getSequence());
+                return chrComparison != 0 ? chrComparison : (int) (vrd1.getReferencePosition().getStartSite() - vrd2.getReferencePosition().getStartSite());
+            }
+        };
+    }
+
+    /** The maximum number of cursors to read concurrently when exporting directly from runs */
+    static private final int MAX_PARALLEL_CURSORS = 4;
+    
+    /** Below this number of exported markers, a single cursor is used */
+    static private final int MIN_MARKER_COUNT_FOR_PARALLEL_CURSORS = 50000;
+    
+    /** The maximum number of chunks fetched ahead of the one being written when exporting from a temporary collection (bounds memory usage) */
+    static private final int MAX_PREFETCHED_CHUNKS = 2;
 
     private ProgressIndicator progress;
     
@@ -94,6 +124,8 @@ public class ExportManager
     
     private boolean fWorkingOnTempColl;
     
+    private boolean fLeanRuns = false;
+    
     private FileWriter warningFileWriter;
     
     private MongoTemplate mongoTemplate;
@@ -104,6 +136,9 @@ public class ExportManager
     
     private Collection<Integer> sampleIDsToExport;
     
+    /** Whether all positions carry an indexed sequence ordinal (which also allows keyset pagination, see PositionKey) */
+    private boolean fUseSequenceOrdinals;
+    
     private MongoCollection<Document> varColl;
     
     private Class resultType;
@@ -112,13 +147,28 @@ public class ExportManager
     
     private BasicDBObject matchStage = null;
     private BasicDBObject sortStage = null;
+
+    /** The collation cursors are sorted with (null when sorting on sequence ordinals) */
+    private Collation cursorCollation = null;
     private BasicDBObject projectStage = null;
     
     private Integer nNumberOfChunksUsedForSpeedEstimation = null;  // if it remains null then we won't attempt any comparison
     
+    private long percentageOfExportedSamples;  // only set when the $project stage is worth assessing
+    
     private ArrayList<Document> projectFilterList = new ArrayList<>();
+    
+    private ArrayList<Document> runLevelFilterList = new ArrayList<>();   // only used with lean runs: filters that can't be applied to VariantData
+
+    public static final CodecRegistry pojoCodecRegistry = CodecRegistries.fromRegistries(MongoClientSettings.getDefaultCodecRegistry(), CodecRegistries.fromCodecs(new SampleGenotypeCodec()), CodecRegistries.fromProviders(PojoCodecProvider.builder().register(new IntKeyMapPropertyCodecProvider()).automatic(true).build()));
 
-    public static final CodecRegistry pojoCodecRegistry = CodecRegistries.fromRegistries(MongoClientSettings.getDefaultCodecRegistry(), CodecRegistries.fromProviders(PojoCodecProvider.builder().register(new IntKeyMapPropertyCodecProvider()).automatic(true).build()));
+    /** Same as pojoCodecRegistry except that VariantRunData sample genotypes only get decoded when looked up by sample ID (worth it when records contain many samples we don't want) */
+    public static final CodecRegistry lazyPojoCodecRegistry = CodecRegistries.fromRegistries(MongoClientSettings.getDefaultCodecRegistry(), CodecRegistries.fromCodecs(new SampleGenotypeCodec()), CodecRegistries.fromProviders(PojoCodecProvider.builder().register(new IntKeyMapPropertyCodecProvider(true)).automatic(true).build()));
+    
+    private CodecRegistry runCodecRegistry = pojoCodecRegistry;
+    
+    /** Sorts this export's runs, each distinct sequence name being decomposed only once rather than at every comparison */
+    private final Comparator<VariantRunData> runComparator = vrdComparator(alphaNumericStringComparator.memoizing());
     
     public ExportManager(MongoTemplate mongoTemplate, MongoCollection<Document> varColl, Class resultType, Document varQuery, Collection<GenotypingSample> samplesToExport, boolean fIncludeMetadata, int nQueryChunkSize, AbstractExportWritingThread writingThread, Long markerCount, FileWriter warningFileWriter, ProgressIndicator progress) {
         this.progress = progress;
@@ -133,8 +183,17 @@ public class ExportManager
         String varCollName = varColl.getNamespace().getCollectionName();
         fWorkingOnTempColl = varCollName.startsWith(MongoTemplateManager.TEMP_COLL_PREFIX);
 
+        // lean run documents hold no variant-level fields: variants then need to be selected and sorted from the VariantData collection (or from the temp collection, which holds copies of them), and runs completed with their contents
+        if (VariantRunData.class.equals(resultType) && MongoTemplateManager.doesDatabaseContainLeanRuns(mongoTemplate)) {
+            fLeanRuns = true;
+            this.varColl = fWorkingOnTempColl ? varColl.withCodecRegistry(pojoCodecRegistry) : mongoTemplate.getDb().withCodecRegistry(pojoCodecRegistry).getCollection(mongoTemplate.getCollectionName(VariantData.class));
+        }
+
+        // when all positions carry a sequence ordinal, sorting on it spares the numeric collation (which makes index keys bigger and comparisons slower)
+        fUseSequenceOrdinals = MgdbDao.hasSequenceOrdinalIndex(this.varColl);
+        cursorCollation = fUseSequenceOrdinals ? null : IExportHandler.collationObj;
         String refPosPath = AbstractVariantData.FIELDNAME_REFERENCE_POSITION;
-        sortStage = new BasicDBObject("$sort", new Document(refPosPath  + "." + ReferencePosition.FIELDNAME_SEQUENCE, 1).append(refPosPath + "." + ReferencePosition.FIELDNAME_START_SITE, 1));
+        sortStage = new BasicDBObject("$sort", new Document(refPosPath  + "." + (fUseSequenceOrdinals ? ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL : ReferencePosition.FIELDNAME_SEQUENCE), 1).append(refPosPath + "." + ReferencePosition.FIELDNAME_START_SITE, 1));
 
         // optimization 1: filling in involvedProjectRuns will provide means to apply filtering on project and/or run fields when exporting from temporary collection
         HashMap<Integer, List<String>> involvedProjectRuns = Helper.getRunsByProjectInSampleCollection(samplesToExport);
@@ -157,8 +216,32 @@ public class ExportManager
         sampleIDsToExport = samplesToExport == null ? new ArrayList<>() : samplesToExport.stream().map(sp -> sp.getId()).collect(Collectors.toList());
         Collection<Integer> sampleIDsNotToExport = percentageOfExportedSamples >= 98 ? new ArrayList<>() /* if almost all individuals are being exported we directly omit the $project stage */ : (percentageOfExportedSamples > 50 ? mongoTemplate.findDistinct(new Query(Criteria.where("_id").not().in(sampleIDsToExport)), "_id", GenotypingSample.class, Integer.class) : null);
 
+        // optimization 3: when fetched records are going to contain unwanted samples (i.e. no inclusive $project), only decode the genotypes that will actually be looked up
+        if (sampleIDsNotToExport != null && percentageOfExportedSamples < 98) {
+            runCodecRegistry = lazyPojoCodecRegistry;
+            if (VariantRunData.class.equals(resultType) && !fLeanRuns)
+                this.varColl = varColl.withCodecRegistry(lazyPojoCodecRegistry);
+        }
+
+        if (fLeanRuns && !varQuery.isEmpty()) {    // set apart filters that only runs can answer, they'll be applied when querying runs for each chunk of variants
+            Entry<String, Object> firstMatchEntry = varQuery.entrySet().iterator().next();
+            List<?> matchAndList = "$and".equals(firstMatchEntry.getKey()) && firstMatchEntry.getValue() instanceof List ? (List<?>) firstMatchEntry.getValue() : Arrays.asList(varQuery);
+            List<Object> variantLevelFilterList = new ArrayList<>();
+            for (Object filter : matchAndList)
+                if (isVariantLevelFilter(filter))
+                    variantLevelFilterList.add(filter);
+                else {
+                    Document runLevelFilter = new Document();   // variant IDs are stored in a different field in runs
+                    for (Entry<?, ?> filterEntry : ((Map<?, ?>) filter).entrySet())
+                        runLevelFilter.append("_id".equals(filterEntry.getKey()) ? "_id." + VariantRunDataId.FIELDNAME_VARIANT_ID : filterEntry.getKey().toString(), filterEntry.getValue());
+                    runLevelFilterList.add(runLevelFilter);
+                }
+            if (!runLevelFilterList.isEmpty())
+                varQuery = variantLevelFilterList.isEmpty() ? new Document() : new Document("$and", variantLevelFilterList);
+        }
+
         if (!varQuery.isEmpty()) {
-            if (!fWorkingOnTempColl && !projectFilterList.isEmpty()) {
+            if (!fWorkingOnTempColl && !fLeanRuns && !projectFilterList.isEmpty()) {
                 Entry<String, Object> firstMatchEntry = varQuery.entrySet().iterator().next();
                 List<Document> matchAndList = "$and".equals(firstMatchEntry.getKey()) ? (List<Document>) firstMatchEntry.getValue() : Arrays.asList(varQuery);
                 matchAndList.addAll(projectFilterList);
@@ -186,22 +269,79 @@ public class ExportManager
 
             projectStage = new BasicDBObject("$project", projection);
             if (markerCount != null && markerCount > 5000 && nTotalNumberOfSamplesInDB > 200 && sampleIDsNotToExport != null && !sampleIDsNotToExport.isEmpty()) {   // we may only attempt evaluating if it's worth removing $project when exported markers are numerous enough, overall sample count is large enough and more than a half of them is involved
-                double nTotalChunkCount = Math.ceil(markerCount.intValue() / nQueryChunkSize);
-                if (nTotalChunkCount > 30)   // at least 10 chunks would be used for comparison, we only bother doing it if the optimization can be applied to at more than 20 others
-                    nNumberOfChunksUsedForSpeedEstimation = markerCount == null ? 5 : Math.max(5, (int) nTotalChunkCount / 100 /*1% of the whole stuff*/);
+                this.percentageOfExportedSamples = percentageOfExportedSamples;
+                switch (ProjectStageCostModel.decide(mongoTemplate, getPipelineShape(), percentageOfExportedSamples, getProjectStageRemovalThreshold())) {    // previous exports of this data may already have told which option is best
+                    case REMOVE:
+                        projectStage = null;
+                        LOG.debug("Exporting without $project stage according to previous timings");
+                        break;
+                    case PROBE:
+                        double nTotalChunkCount = Math.ceil(markerCount.intValue() / nQueryChunkSize);
+                        if (nTotalChunkCount > 30)   // at least 10 chunks would be used for comparison, we only bother doing it if the optimization can be applied to at more than 20 others
+                            nNumberOfChunksUsedForSpeedEstimation = markerCount == null ? 5 : Math.max(5, (int) nTotalChunkCount / 100 /*1% of the whole stuff*/);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies the way data is read, for ProjectStageCostModel: $project applies to a single cursor over runs, or to queries fetching runs for chunks of variants
+     */
+    private String getPipelineShape() {
+        return fWorkingOnTempColl || fLeanRuns ? "chunked" : "direct";
+    }
+
+    /**
+     * @return the ratio (time spent reading without $project / time spent reading with it) below which $project is removed
+     */
+    private double getProjectStageRemovalThreshold() {
+        return fWorkingOnTempColl || fLeanRuns ? 1 : .75;
+    }
+
+    /**
+     * Tells whether a filter only involves fields that VariantData documents hold (i.e. fields lean runs don't have)
+     */
+    private static boolean isVariantLevelFilter(Object filter) {
+        if (!(filter instanceof Map))
+            return false;
+        for (Entry<?, ?> filterEntry : ((Map<?, ?>) filter).entrySet()) {
+            String key = filterEntry.getKey().toString();
+            if ("$and".equals(key) || "$or".equals(key) || "$nor".equals(key)) {
+                if (!(filterEntry.getValue() instanceof List))
+                    return false;
+                for (Object subFilter : (List<?>) filterEntry.getValue())
+                    if (!isVariantLevelFilter(subFilter))
+                        return false;
+                continue;
             }
+            String rootField = key.split("\\.")[0];
+            if (!"_id".equals(rootField) && !AbstractVariantData.FIELDNAME_REFERENCE_POSITION.equals(rootField) && !AbstractVariantData.FIELDNAME_KNOWN_ALLELES.equals(rootField) && !AbstractVariantData.FIELDNAME_TYPE.equals(rootField) && !AbstractVariantData.FIELDNAME_SYNONYMS.equals(rootField) && !AbstractVariantData.FIELDNAME_NUMERIC_KEY.equals(rootField))
+                return false;
         }
+        return true;
+    }
+
+    /**
+     * Tells whether markers may be read by keyset pagination on {sequence ordinal, start site, _id} (see PositionKeysetCursor), i.e. whether the
+     * collection being read has the corresponding index and selected markers are only filtered by position.
+     */
+    private boolean canPaginateByPosition() {
+        return fUseSequenceOrdinals && (matchStage == null || PositionKey.isPurelyPositional((Document) matchStage.get("$match")));
     }
 
     public void readAndWrite() throws IOException, InterruptedException, ExecutionException {        
-        if (fWorkingOnTempColl)
+        if (fWorkingOnTempColl || fLeanRuns)
             exportFromTempColl();
         else
             exportDirectlyFromRuns();
     }
     
     /**
-     * Exports by $match-ing successive chunks of variant IDs in VariantRunData. Would have thought using $lookup with a single cursor would be faster, but it's much slower
+     * Exports by $match-ing successive chunks of variant IDs in VariantRunData. Would have thought using $lookup with a single cursor would be faster, but it's much slower.
+     * Also used for databases containing lean runs, in which case variants are read from VariantData and runs get completed with their variant-level fields
      * 
      * @throws IOException
      * @throws InterruptedException
@@ -212,112 +352,204 @@ public class ExportManager
         Collection<Collection<VariantRunData>> tempMarkerRunsToWrite = new ArrayList<>(nQueryChunkSize);
         List<VariantRunData> currentMarkerRuns = new ArrayList<>(involvedRunCount);
         List<String> currentMarkerIDs = new ArrayList<>(nQueryChunkSize);
+        List<Long> currentMarkerNumericKeys = new ArrayList<>(nQueryChunkSize);
+        HashMap<String, VariantData> currentMarkerVariants = fLeanRuns ? new HashMap<>(nQueryChunkSize) : null;
         String varId = null, previousVarId = null;
         int nWrittenmarkerCount = 0;
         
-        List<BasicDBObject> pipeline = new ArrayList<>();
-        if (matchStage != null)
-            pipeline.add(matchStage);   // there can be a $match on temp colls (for example to apply a range when displaying IGV data)
-        pipeline.add(sortStage);
-        pipeline.add(new BasicDBObject("$project", new BasicDBObject("_id", 1)));
-
-        MongoCursor markerCursor = varColl.aggregate(pipeline, Document.class).collation(IExportHandler.collationObj).allowDiskUse(true).batchSize(nQueryChunkSize).iterator();   /*FIXME: didn't find a way to set noCursorTimeOut on aggregation cursors*/
+        MongoCollection<VariantRunData> runColl = mongoTemplate.getDb().withCodecRegistry(runCodecRegistry).getCollection(mongoTemplate.getCollectionName(VariantRunData.class), VariantRunData.class);
+        boolean fUseNumericKeys = MgdbDao.hasNumericKeyIndex(mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class)));   // if so, all runs have one and $in-ing on those is cheaper than on String IDs
+        BasicDBObject markerProjection = new BasicDBObject("_id", 1);
+        if (fUseNumericKeys)
+            markerProjection.append(AbstractVariantData.FIELDNAME_NUMERIC_KEY, 1);
+        if (fLeanRuns)
+            for (String field : Arrays.asList(AbstractVariantData.FIELDNAME_KNOWN_ALLELES, AbstractVariantData.FIELDNAME_REFERENCE_POSITION, AbstractVariantData.FIELDNAME_TYPE, AbstractVariantData.FIELDNAME_SYNONYMS))
+                markerProjection.append(field, 1);
+
+        MongoCursor markerCursor;
+        if (canPaginateByPosition()) {  // each chunk of markers is then read by a cheap indexed query resuming after the previous one, rather than through a cursor that must survive the whole export
+            List<BasicDBObject> tailStages = Arrays.asList(new BasicDBObject("$project", fLeanRuns ? markerProjection : new BasicDBObject(markerProjection).append(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, 1).append(AbstractVariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE, 1)));
+            Document markerFilter = matchStage == null ? null : PositionKey.withSequenceOrdinalBounds((Document) matchStage.get("$match"), MgdbDao.getSequenceOrdinals(mongoTemplate));
+            if (fLeanRuns)
+                markerCursor = new PositionKeysetCursor<VariantData>(varColl, VariantData.class, markerFilter, tailStages, nQueryChunkSize, variant -> PositionKey.of(variant, variant.getId()), null, null, null);
+            else
+                markerCursor = new PositionKeysetCursor<Document>(varColl, Document.class, markerFilter, tailStages, nQueryChunkSize, PositionKey::of, null, null, null);
+        }
+        else {
+            List<BasicDBObject> pipeline = new ArrayList<>();
+            if (matchStage != null)
+                pipeline.add(matchStage);   // there can be a $match on temp colls (for example to apply a range when displaying IGV data)
+            pipeline.add(sortStage);
+            pipeline.add(new BasicDBObject("$project", markerProjection));
+            if (fLeanRuns)
+                markerCursor = varColl.aggregate(pipeline, VariantData.class).collation(cursorCollation).allowDiskUse(true).batchSize(nQueryChunkSize).iterator();   /*FIXME: didn't find a way to set noCursorTimeOut on aggregation cursors*/
+            else
+                markerCursor = varColl.aggregate(pipeline).collation(cursorCollation).allowDiskUse(true).batchSize(nQueryChunkSize).iterator();
+        }
 
-        // pipeline object will we re-used to query VariantRunData, we won't need the $project stage for that
-        pipeline = new ArrayList<>();
-        pipeline.add(sortStage);
+        int nChunkIndex = 0, nProcessedChunkCount = 0;
+        long timeSpentReadingWithoutProjectStage = 0, timeSpentReadingWithProjectStage = 0;
+        boolean fKeepProjectStage = true;   // only relevant when comparing speed with and without $project
         
-        int nChunkIndex = 0;
-        long chunkProcessingStartTime = System.currentTimeMillis(), timeSpentReadingWithoutProjectStage = -1;
-        
-        MongoCollection<VariantRunData> runColl = mongoTemplate.getDb().withCodecRegistry(ExportManager.pojoCodecRegistry).getCollection(mongoTemplate.getCollectionName(VariantRunData.class), VariantRunData.class);
-        while (markerCursor.hasNext()) {
-            if (progress.isAborted() || progress.getError() != null ) {
-                if (warningFileWriter != null)
-                    warningFileWriter.close();
-                return;
-            }
-            
-            currentMarkerIDs.add(((Document) markerCursor.next()).getString("_id"));
-            
-            if (currentMarkerIDs.size() >= nQueryChunkSize || !markerCursor.hasNext()) {
+        // chunks are fetched (and sorted) by a separate thread, a few of them ahead of the one being written, so that querying the DB overlaps with formatting
+        ArrayDeque<Future<FetchedChunk>> pendingChunks = new ArrayDeque<>(MAX_PREFETCHED_CHUNKS + 1);
+        ExecutorService chunkFetchingExecutor = Executors.newSingleThreadExecutor();
+        try {
+            while (markerCursor.hasNext()) {
+                if (progress.isAborted() || progress.getError() != null ) {
+                    if (warningFileWriter != null)
+                        warningFileWriter.close();
+                    pendingChunks.forEach(pendingChunk -> pendingChunk.cancel(true));
+                    return;
+                }
+                
+                if (fLeanRuns) {
+                    VariantData variant = (VariantData) markerCursor.next();
+                    currentMarkerIDs.add(variant.getId());
+                    currentMarkerVariants.put(variant.getId(), variant);
+                    if (fUseNumericKeys && variant.getNumericKey() != null)
+                        currentMarkerNumericKeys.add(variant.getNumericKey());
+                }
+                else {
+                    Document marker = (Document) markerCursor.next();
+                    currentMarkerIDs.add(marker.getString("_id"));
+                    if (fUseNumericKeys && marker.get(AbstractVariantData.FIELDNAME_NUMERIC_KEY) != null)
+                        currentMarkerNumericKeys.add(((Number) marker.get(AbstractVariantData.FIELDNAME_NUMERIC_KEY)).longValue());
+                }
+                
+                if (currentMarkerIDs.size() < nQueryChunkSize && markerCursor.hasNext())
+                    continue;
+
                 nChunkIndex++;
 
                 BasicDBList matchAndList = new BasicDBList();
                 if (!projectFilterList.isEmpty())
                     matchAndList.add(projectFilterList.size() == 1 ? projectFilterList.get(0) : new BasicDBObject("$or", projectFilterList));
-                matchAndList.add(new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, new BasicDBObject("$in", currentMarkerIDs)));
-
-                BasicDBObject initialMatchStage = new BasicDBObject("$match", new BasicDBObject("$and", matchAndList));
-                if (varId == null)
-                    pipeline.add(0, initialMatchStage);    // first time we set this stage, it's an insertion
-                else
-                    pipeline.set(0, initialMatchStage);    // replace existing $match
-
-                if (nChunkIndex == 1) {
-                	if (nNumberOfChunksUsedForSpeedEstimation == null && projectStage != null)
-                		pipeline.add(projectStage);	// it was decided to use this $project and not to test removing test
-                    LOG.debug("Export pipeline: " + pipeline);
+                if (fUseNumericKeys && currentMarkerNumericKeys.size() == currentMarkerIDs.size())
+                    matchAndList.add(new BasicDBObject(AbstractVariantData.FIELDNAME_NUMERIC_KEY, new BasicDBObject("$in", currentMarkerNumericKeys)));
+                else    // some variants in this chunk were copied into the temp collection without their numeric key
+                    matchAndList.add(new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, new BasicDBObject("$in", currentMarkerIDs)));
+                matchAndList.addAll(runLevelFilterList);
+
+                List<BasicDBObject> chunkPipeline = new ArrayList<>();
+                chunkPipeline.add(new BasicDBObject("$match", new BasicDBObject("$and", matchAndList)));
+                if (!fLeanRuns)
+                    chunkPipeline.add(sortStage);   // lean runs have no position to sort on, they get sorted once completed
+                if (projectStage != null) {
+                    if (nNumberOfChunksUsedForSpeedEstimation == null)
+                        chunkPipeline.add(projectStage);    // it was decided to use this $project and not to test removing it
+                    else if (nChunkIndex > nNumberOfChunksUsedForSpeedEstimation && fKeepProjectStage)  // pipeline contains a $project stage that we need to assess: first chunks are read without it, next ones with it (best option depends on so many things that we can't find it out otherwise)
+                        chunkPipeline.add(projectStage);
                 }
-
-                ArrayList<VariantRunData> runs = runColl.aggregate(pipeline, VariantRunData.class).allowDiskUse(true).into(new ArrayList<>(currentMarkerIDs.size())); // we don't use collation here because it leads to unexpected behaviour (sometimes fetches some additional variants to those in currentMarkerIDs) => we'll have to sort each chunk by hand
-                Collections.sort(runs, vrdComparator);    // make sure variants within this chunk are correctly sorted
-                
-                for (VariantRunData vrd : runs) {
-                    varId = vrd.getId().getVariantId();
+                if (nChunkIndex == 1)
+                    LOG.debug("Export pipeline: " + chunkPipeline);
+
+                final int nChunkSize = currentMarkerIDs.size();
+                final HashMap<String, VariantData> chunkVariants = currentMarkerVariants;
+                pendingChunks.add(chunkFetchingExecutor.submit(() -> {
+                    long before = System.currentTimeMillis();
+                    ArrayList<VariantRunData> runs = runColl.aggregate(chunkPipeline, VariantRunData.class).allowDiskUse(true).into(new ArrayList<>(nChunkSize)); // we don't use collation here because it leads to unexpected behaviour (sometimes fetches some additional variants to those in currentMarkerIDs) => we'll have to sort each chunk by hand
+                    if (chunkVariants != null)
+                        for (VariantRunData vrd : runs)
+                            vrd.completeVariantLevelFields(chunkVariants.get(vrd.getId().getVariantId()));
+                    Collections.sort(runs, runComparator);    // make sure variants within this chunk are correctly sorted
+                    return new FetchedChunk(runs, System.currentTimeMillis() - before);
+                }));
+                currentMarkerIDs = new ArrayList<>(nQueryChunkSize);    // previous lists are now referenced by the fetching task
+                currentMarkerNumericKeys = new ArrayList<>(nQueryChunkSize);
+                if (fLeanRuns)
+                    currentMarkerVariants = new HashMap<>(nQueryChunkSize);
+
+                boolean fLastChunk = !markerCursor.hasNext();
+                while (pendingChunks.size() > (fLastChunk ? 0 : MAX_PREFETCHED_CHUNKS)) {
+                    FetchedChunk fetchedChunk = pendingChunks.poll().get();
+                    nProcessedChunkCount++;
                     
-                    if (previousVarId != null && !varId.equals(previousVarId)) {
+                    for (VariantRunData vrd : fetchedChunk.runs) {
+                        varId = vrd.getId().getVariantId();
+                        
+                        if (previousVarId != null && !varId.equals(previousVarId)) {
+                            tempMarkerRunsToWrite.add(currentMarkerRuns);
+                            currentMarkerRuns = new ArrayList<>(involvedRunCount);
+                            nWrittenmarkerCount++;
+                        }
+                        currentMarkerRuns.add(vrd);
+                        previousVarId = varId;
+                    }
+
+                    if (fLastChunk && pendingChunks.isEmpty()) {    // special case, when the end of the cursor is being reached
                         tempMarkerRunsToWrite.add(currentMarkerRuns);
-                        currentMarkerRuns = new ArrayList<>(involvedRunCount);
                         nWrittenmarkerCount++;
                     }
-                    currentMarkerRuns.add(vrd);
-                    previousVarId = varId;
-                }
 
-                if (!markerCursor.hasNext()) {    // special case, when the end of the cursor is being reached
-                    tempMarkerRunsToWrite.add(currentMarkerRuns);
-                    nWrittenmarkerCount++;
-                }
-                currentMarkerIDs.clear();
-
-                if (nNumberOfChunksUsedForSpeedEstimation != null) {  // pipeline contains a $project stage that we need to assess: let's compare execution speed with and without it (best option depends on so many things that we can't find it out otherwise)
-                    if (nChunkIndex == nNumberOfChunksUsedForSpeedEstimation) { // we just tested without $project, let's try with it now
-                        timeSpentReadingWithoutProjectStage = System.currentTimeMillis() - chunkProcessingStartTime;
-                        pipeline.add(projectStage);
-                    }
-                    else if (nChunkIndex == 2 * nNumberOfChunksUsedForSpeedEstimation) {
-                        long timeSpentReadingWithProjectStage = System.currentTimeMillis() - chunkProcessingStartTime;
-                        if (timeSpentReadingWithoutProjectStage < timeSpentReadingWithProjectStage) {    // removing $project provided more some speed-up : let's do the rest of the export without $project
-                            pipeline.remove(projectStage);
-                            LOG.debug("Exporting without $project stage");
+                    if (nNumberOfChunksUsedForSpeedEstimation != null && nProcessedChunkCount <= 2 * nNumberOfChunksUsedForSpeedEstimation) {
+                        if (nProcessedChunkCount <= nNumberOfChunksUsedForSpeedEstimation)
+                            timeSpentReadingWithoutProjectStage += fetchedChunk.fetchDuration;
+                        else
+                            timeSpentReadingWithProjectStage += fetchedChunk.fetchDuration;
+                        if (nProcessedChunkCount == 2 * nNumberOfChunksUsedForSpeedEstimation) {
+                            ProjectStageCostModel.recordObservation(mongoTemplate, getPipelineShape(), percentageOfExportedSamples, timeSpentReadingWithoutProjectStage, timeSpentReadingWithProjectStage);
+                            if ((double) timeSpentReadingWithoutProjectStage / timeSpentReadingWithProjectStage < getProjectStageRemovalThreshold()) {    // removing $project provided more some speed-up : let's do the rest of the export without $project (chunks already being fetched are not affected)
+                                fKeepProjectStage = false;
+                                LOG.debug("Exporting without $project stage");
+                            }
                         }
                     }
-                    chunkProcessingStartTime = System.currentTimeMillis();
-                }
 
-                if (future != null && !future.isDone()) {
-//                    long b4 = System.currentTimeMillis();
-                    future.get();
-//                    long delay = System.currentTimeMillis() - b4;
-//                    if (delay > 100)
-//                        LOG.debug(progress.getProcessId() + " waited " + delay + "ms before writing variant " + nWrittenmarkerCount/* + ", increasing nQueryChunkSize from " + nQueryChunkSize + " to " + nQueryChunkSize*2*/);
+                    if (future != null && !future.isDone())
+                        future.get();
+                    
+                    if (markerCount != null)
+                        progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
+                    future = writingThread.writeRuns(tempMarkerRunsToWrite);
+                    tempMarkerRunsToWrite = new ArrayDeque<>(nQueryChunkSize); 
                 }
-                
-                if (markerCount != null)
-                    progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
-                future = writingThread.writeRuns(tempMarkerRunsToWrite);
-                tempMarkerRunsToWrite = new ArrayDeque<>(nQueryChunkSize); 
             }
         }
+        finally {
+            chunkFetchingExecutor.shutdownNow();
+            markerCursor.close();
+        }
 
         if (future != null && !future.isDone())
             future.get();
-        markerCursor.close();
         if (markerCount != null)
             progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
     }
 
+    /**
+     * Contents of a chunk of runs, sorted and ready to be written
+     */
+    private static class FetchedChunk {
+        final ArrayList<VariantRunData> runs;
+        final long fetchDuration;
+
+        FetchedChunk(ArrayList<VariantRunData> runs, long fetchDuration) {
+            this.runs = runs;
+            this.fetchDuration = fetchDuration;
+        }
+    }
+
+    /**
+     * Picks evenly spaced variant IDs among those tagged by MgdbDao.prepareDatabaseForSearches, to be used as boundaries between ranges read by concurrent cursors
+     *
+     * @return the sorted boundaries (empty if a single cursor should be used)
+     */
+    private List<String> getPartitionBoundaries() {
+        int nPartitionCount = Math.min(MAX_PARALLEL_CURSORS, Runtime.getRuntime().availableProcessors());
+        List<String> boundaries = new ArrayList<>();
+        if (nPartitionCount < 2)
+            return boundaries;
+
+        // tagged IDs must be sorted with the same collation as the one used when querying, so that ranges remain contiguous
+        List<String> taggedVariantIDs = mongoTemplate.getCollection(MgdbDao.COLLECTION_NAME_TAGGED_VARIANT_IDS).find().sort(new BasicDBObject("_id", 1)).collation(cursorCollation).map(doc -> doc.get("_id").toString()).into(new ArrayList<>());
+        if (taggedVariantIDs.size() < nPartitionCount)
+            return boundaries;
+        for (int i=1; i<nPartitionCount; i++)
+            boundaries.add(taggedVariantIDs.get(i * taggedVariantIDs.size() / nPartitionCount));
+        return boundaries;
+    }
+
     private void exportDirectlyFromRuns() throws IOException, InterruptedException, ExecutionException {
         CompletableFuture<Void> future = null;
         Collection<Collection<VariantRunData>> tempMarkerRunsToWrite = new ArrayDeque<>(nQueryChunkSize);
@@ -330,6 +562,14 @@ public class ExportManager
             Document matchContents = (Document) matchStage.get("$match");
             BasicDBList filters = matchContents.containsKey("$and") ? (BasicDBList) matchContents.get("$and") : new BasicDBList() {{ add(new BasicDBObject(matchContents)); }};
             Helper.convertIdFiltersToRunFormat(Arrays.asList(filters));
+            BasicDBObject bucketFilter = MgdbDao.hasPositionBucketIndex(varColl) ? MgdbDao.buildPositionBucketFilter(filters) : null;
+            if (bucketFilter != null) { // allows the server to narrow down on {sequence, bucket} before looking at start sites
+                if (matchContents.containsKey("$and"))
+                    filters.add(bucketFilter);
+                else
+                    matchContents.putAll(bucketFilter);
+                LOG.debug("Added position bucket filter: " + bucketFilter);
+            }
             pipeline.add(matchStage);
         }
         pipeline.add(sortStage);
@@ -345,7 +585,7 @@ public class ExportManager
             pipelineClone.add(nPosAfterSortStage, new BasicDBObject("$skip", nQueryChunkSize * nNumberOfChunksUsedForSpeedEstimation));
             threadCreatingComparisonCursor = new Thread() {
                 public void run() {                   
-                    markerCursors[1] = varColl.aggregate(pipelineClone, resultType).collation(IExportHandler.collationObj).allowDiskUse(true).batchSize(nQueryChunkSize).iterator();   /*FIXME: didn't find a way to set noCursorTimeOut on aggregation cursors*/
+                    markerCursors[1] = varColl.aggregate(pipelineClone, resultType).collation(cursorCollation).allowDiskUse(true).batchSize(nQueryChunkSize).iterator();   /*FIXME: didn't find a way to set noCursorTimeOut on aggregation cursors*/
                 }
             };
             threadCreatingComparisonCursor.start();
@@ -353,77 +593,116 @@ public class ExportManager
             pipeline.remove(pipeline.size() - 1);   // remove $project
         }
 
-        markerCursors[0] = varColl.aggregate(pipeline, resultType).collation(IExportHandler.collationObj).allowDiskUse(true).batchSize(nQueryChunkSize).iterator();   /*FIXME: didn't find a way to set noCursorTimeOut on aggregation cursors*/
+        List<String> partitionBoundaries = nNumberOfChunksUsedForSpeedEstimation == null && VariantRunData.class.equals(resultType) && (markerCount == null || markerCount > MIN_MARKER_COUNT_FOR_PARALLEL_CURSORS) ? getPartitionBoundaries() : new ArrayList<>();
+        if (partitionBoundaries.isEmpty()) {
+            if (nNumberOfChunksUsedForSpeedEstimation == null && VariantRunData.class.equals(resultType) && canPaginateByPosition()) {   // pages resume after the last position read, so there's no cursor to keep alive for the whole export (runs' composite IDs are left out of keys, and each page gets sorted so that runs of a given variant are contiguous)
+                LOG.debug("Exporting through keyset pagination on " + PositionKey.getIndexKeys());
+                markerCursors[0] = new PositionKeysetCursor<VariantRunData>(varColl, VariantRunData.class, matchStage == null ? null : PositionKey.withSequenceOrdinalBounds((Document) matchStage.get("$match"), MgdbDao.getSequenceOrdinals(mongoTemplate)), new ArrayList<>(pipeline.subList(nPosAfterSortStage, pipeline.size())), nQueryChunkSize, run -> PositionKey.of(run, null), runComparator.thenComparing(run -> run.getId().getVariantId()), "_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, run -> run.getId().getVariantId());
+            }
+            else
+                markerCursors[0] = varColl.aggregate(pipeline, resultType).collation(cursorCollation).allowDiskUse(true).batchSize(nQueryChunkSize).iterator();   /*FIXME: didn't find a way to set noCursorTimeOut on aggregation cursors*/
+        }
+        else {  // read variant ID ranges concurrently, merging their contents back in position order
+            List<AggregateIterable<VariantRunData>> partitionSources = new ArrayList<>();
+            for (int i=0; i<=partitionBoundaries.size(); i++) {
+                BasicDBObject idRange = new BasicDBObject();
+                if (i > 0)
+                    idRange.append("$gte", partitionBoundaries.get(i - 1));
+                if (i < partitionBoundaries.size())
+                    idRange.append("$lt", partitionBoundaries.get(i));
+                BasicDBList partitionMatchAndList = new BasicDBList();
+                if (matchStage != null)
+                    partitionMatchAndList.add(matchStage.get("$match"));
+                partitionMatchAndList.add(new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, idRange));
+
+                List<BasicDBObject> partitionPipeline = new ArrayList<>(pipeline);
+                BasicDBObject partitionMatchStage = new BasicDBObject("$match", new BasicDBObject("$and", partitionMatchAndList));
+                if (matchStage != null)
+                    partitionPipeline.set(0, partitionMatchStage);
+                else
+                    partitionPipeline.add(0, partitionMatchStage);
+                partitionSources.add(varColl.aggregate(partitionPipeline, VariantRunData.class).collation(cursorCollation).allowDiskUse(true).batchSize(nQueryChunkSize));
+            }
+            LOG.debug("Exporting through " + partitionSources.size() + " concurrent cursors");
+            markerCursors[0] = new MergingRunCursor(partitionSources, nQueryChunkSize, runComparator);
+        }
 
         if (threadCreatingComparisonCursor != null)
             threadCreatingComparisonCursor.join();
         
-        MongoCursor markerCursor = markerCursors[0];
-        int nChunkIndex = 0;
-        long chunkProcessingStartTime = System.currentTimeMillis(), timeSpentReadingWithoutProjectStage = -1;
-        while (markerCursor.hasNext()) {
-            if (progress.isAborted() || progress.getError() != null ) {
-                if (warningFileWriter != null)
-                    warningFileWriter.close();
-                return;
-            }
+        try {
+            MongoCursor markerCursor = markerCursors[0];
+            int nChunkIndex = 0;
+            long chunkProcessingStartTime = System.currentTimeMillis(), timeSpentReadingWithoutProjectStage = -1;
+            while (markerCursor.hasNext()) {
+                if (progress.isAborted() || progress.getError() != null ) {
+                    if (warningFileWriter != null)
+                        warningFileWriter.close();
+                    return;
+                }
 
-            VariantRunData vrd = (VariantRunData) markerCursor.next();
-            varId = vrd.getId().getVariantId();
+                VariantRunData vrd = (VariantRunData) markerCursor.next();
+                varId = vrd.getId().getVariantId();
 
-            if (previousVarId != null && !varId.equals(previousVarId)) {
-                tempMarkerRunsToWrite.add(currentMarkerRuns);
-                currentMarkerRuns = new ArrayList<>();
-                nWrittenmarkerCount++;
-            }
+                if (previousVarId != null && !varId.equals(previousVarId)) {
+                    tempMarkerRunsToWrite.add(currentMarkerRuns);
+                    currentMarkerRuns = new ArrayList<>();
+                    nWrittenmarkerCount++;
+                }
 
-            currentMarkerRuns.add(vrd);
+                currentMarkerRuns.add(vrd);
 
-            if (!markerCursor.hasNext())
-                tempMarkerRunsToWrite.add(currentMarkerRuns);    // special case, when the end of the cursor is being reached
+                if (!markerCursor.hasNext())
+                    tempMarkerRunsToWrite.add(currentMarkerRuns);    // special case, when the end of the cursor is being reached
 
-            if (tempMarkerRunsToWrite.size() >= nQueryChunkSize || !markerCursor.hasNext()) {
-                nChunkIndex++;
+                if (tempMarkerRunsToWrite.size() >= nQueryChunkSize || !markerCursor.hasNext()) {
+                    nChunkIndex++;
 
-                if (markerCursors[1] != null) {
-                    if (nChunkIndex == nNumberOfChunksUsedForSpeedEstimation) { // we just tested without $project, let's try with it now
-                        timeSpentReadingWithoutProjectStage = System.currentTimeMillis() - chunkProcessingStartTime;
-                        markerCursor = markerCursors[1];
-                    }
-                    else if (nChunkIndex == 2 * nNumberOfChunksUsedForSpeedEstimation) {
-                        long timeSpentReadingWithProjectStage = System.currentTimeMillis() - chunkProcessingStartTime;
-                        if ((float) timeSpentReadingWithoutProjectStage / timeSpentReadingWithProjectStage <= .75) {    // removing $project provided more than 25% speed-up : let's do the rest of the export without $project
-                            markerCursor.close();
-                            markerCursor = markerCursors[0];
-                            for (int i=0; i<=nQueryChunkSize * nNumberOfChunksUsedForSpeedEstimation; i++)
-                                markerCursor.tryNext();
-                            LOG.debug("Exporting without $project stage");
+                    if (markerCursors[1] != null) {
+                        if (nChunkIndex == nNumberOfChunksUsedForSpeedEstimation) { // we just tested without $project, let's try with it now
+                            timeSpentReadingWithoutProjectStage = System.currentTimeMillis() - chunkProcessingStartTime;
+                            markerCursor = markerCursors[1];
                         }
-                        else
-                            markerCursors[0].close();
+                        else if (nChunkIndex == 2 * nNumberOfChunksUsedForSpeedEstimation) {
+                            long timeSpentReadingWithProjectStage = System.currentTimeMillis() - chunkProcessingStartTime;
+                            ProjectStageCostModel.recordObservation(mongoTemplate, getPipelineShape(), percentageOfExportedSamples, timeSpentReadingWithoutProjectStage, timeSpentReadingWithProjectStage);
+                            if ((float) timeSpentReadingWithoutProjectStage / timeSpentReadingWithProjectStage <= getProjectStageRemovalThreshold()) {    // removing $project provided more than 25% speed-up : let's do the rest of the export without $project
+                                markerCursor.close();
+                                markerCursor = markerCursors[0];
+                                for (int i=0; i<=nQueryChunkSize * nNumberOfChunksUsedForSpeedEstimation; i++)
+                                    markerCursor.tryNext();
+                                LOG.debug("Exporting without $project stage");
+                            }
+                            else
+                                markerCursors[0].close();
+                        }
+                        chunkProcessingStartTime = System.currentTimeMillis();
                     }
-                    chunkProcessingStartTime = System.currentTimeMillis();
-                }
 
-                if (future != null && !future.isDone()) {
-//                    long b4 = System.currentTimeMillis();
-                    future.get();
-//                    long delay = System.currentTimeMillis() - b4;
-//                    if (delay > 100) {
-//                        LOG.debug(progress.getProcessId() + " waited " + delay + "ms before writing variant " + nWrittenmarkerCount/* + ", increasing nQueryChunkSize from " + nQueryChunkSize + " to " + nQueryChunkSize*2*/);
-                }
+                    if (future != null && !future.isDone()) {
+    //                    long b4 = System.currentTimeMillis();
+                        future.get();
+    //                    long delay = System.currentTimeMillis() - b4;
+    //                    if (delay > 100) {
+    //                        LOG.debug(progress.getProcessId() + " waited " + delay + "ms before writing variant " + nWrittenmarkerCount/* + ", increasing nQueryChunkSize from " + nQueryChunkSize + " to " + nQueryChunkSize*2*/);
+                    }
 
-                if (markerCount != null && markerCount > 0)
-                    progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
-                future = writingThread.writeRuns(tempMarkerRunsToWrite);
-                tempMarkerRunsToWrite = new ArrayDeque<>(nQueryChunkSize); 
+                    if (markerCount != null && markerCount > 0)
+                        progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
+                    future = writingThread.writeRuns(tempMarkerRunsToWrite);
+                    tempMarkerRunsToWrite = new ArrayDeque<>(nQueryChunkSize); 
+                }
+                previousVarId = varId;
             }
-            previousVarId = varId;
-        }
 
-        if (future != null && !future.isDone())
-            future.get();
-        markerCursor.close();
+            if (future != null && !future.isDone())
+                future.get();
+        }
+        finally {
+            for (MongoCursor cursor : markerCursors)
+                if (cursor != null)
+                    cursor.close();   // also stops reading threads if several cursors are involved
+        }
         if (markerCount != null && markerCount > 0)
             progress.setCurrentStepProgress(nWrittenmarkerCount * 100l / markerCount);
     }
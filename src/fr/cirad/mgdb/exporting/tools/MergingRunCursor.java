@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+
+/**
+ * Reads several VariantRunData cursors concurrently (one thread each), all sorted by position, and merges them back into a single position-sorted stream.
+ * Each source may only get a bounded number of records ahead of the merge (which acts as a reorder buffer), so memory usage remains under control.
+ * Source cursors are expected to cover disjoint variant sets, so that all runs of a given variant come from the same source.
+ */
+public class MergingRunCursor implements MongoCursor<VariantRunData>
+{
+    /** The Constant LOG. */
+    static final Logger LOG = Logger.getLogger(MergingRunCursor.class);
+
+    /** Marks the end of a source's contents in its buffer */
+    private static final VariantRunData END_OF_SOURCE = new VariantRunData();
+
+    private final List<BlockingQueue<VariantRunData>> buffers = new ArrayList<>();
+
+    private final PriorityQueue<SourceHead> heads;
+
+    private volatile boolean fClosed = false;
+
+    private volatile Throwable readingError = null;
+
+    private boolean fStarted = false;
+
+    private static class SourceHead {
+        final VariantRunData run;
+        final int nSourceIndex;
+
+        SourceHead(VariantRunData run, int nSourceIndex) {
+            this.run = run;
+            this.nSourceIndex = nSourceIndex;
+        }
+    }
+
+    /**
+     * Instantiates a new merging run cursor, and starts reading from the sources.
+     *
+     * @param sources the sources, each of them sorted by position (their cursors are opened by reading threads so that queries get executed concurrently)
+     * @param nBufferSizePerSource the maximum number of records each source may read ahead
+     */
+    public MergingRunCursor(List<? extends MongoIterable<VariantRunData>> sources, int nBufferSizePerSource) {
+        this(sources, nBufferSizePerSource, ExportManager.vrdComparator);
+    }
+
+    /**
+     * Instantiates a new merging run cursor, and starts reading from the sources.
+     *
+     * @param sources the sources, each of them sorted by position (their cursors are opened by reading threads so that queries get executed concurrently)
+     * @param nBufferSizePerSource the maximum number of records each source may read ahead
+     * @param runComparator the comparator sources are sorted with
+     */
+    public MergingRunCursor(List<? extends MongoIterable<VariantRunData>> sources, int nBufferSizePerSource, Comparator<VariantRunData> runComparator) {
+        heads = new PriorityQueue<>(Math.max(1, sources.size()), Comparator.<SourceHead, VariantRunData>comparing(head -> head.run, runComparator)
+            .thenComparing(head -> head.run.getId().getVariantId())   // keeps runs of a variant together when several variants share a position
+            .thenComparingInt(head -> head.nSourceIndex));
+
+        for (int i=0; i<sources.size(); i++) {
+            final MongoIterable<VariantRunData> source = sources.get(i);
+            final BlockingQueue<VariantRunData> buffer = new ArrayBlockingQueue<>(Math.max(1, nBufferSizePerSource));
+            buffers.add(buffer);
+            Thread readingThread = new Thread() {
+                public void run() {
+                    MongoCursor<VariantRunData> sourceCursor = null;
+                    try {
+                        sourceCursor = source.iterator();
+                        while (!fClosed && sourceCursor.hasNext())
+                            if (!offer(buffer, sourceCursor.next()))
+                                break;
+                    }
+                    catch (Throwable t) {
+                        if (!fClosed) {
+                            LOG.error("Error reading export cursor", t);
+                            readingError = t;
+                        }
+                    }
+                    finally {
+                        if (sourceCursor != null)
+                            sourceCursor.close();
+                        offer(buffer, END_OF_SOURCE);
+                    }
+                }
+            };
+            readingThread.setDaemon(true);
+            readingThread.start();
+        }
+    }
+
+    /**
+     * Waits for room in the buffer, giving up if the cursor gets closed in the meantime
+     */
+    private boolean offer(BlockingQueue<VariantRunData> buffer, VariantRunData run) {
+        try {
+            while (!fClosed)
+                if (buffer.offer(run, 1, TimeUnit.SECONDS))
+                    return true;
+        }
+        catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void pullFromSource(int nSourceIndex) {
+        VariantRunData run;
+        try {
+            run = buffers.get(nSourceIndex).take();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for export data", ie);
+        }
+        if (readingError != null)
+            throw new IllegalStateException("Unable to read export data", readingError);
+        if (run != END_OF_SOURCE)
+            heads.add(new SourceHead(run, nSourceIndex));
+    }
+
+    private void start() {
+        if (!fStarted) {
+            fStarted = true;
+            for (int i=0; i<buffers.size(); i++)
+                pullFromSource(i);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        start();
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public VariantRunData next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        SourceHead head = heads.poll();
+        pullFromSource(head.nSourceIndex);
+        return head.run;
+    }
+
+    @Override
+    public VariantRunData tryNext() {
+        return hasNext() ? next() : null;
+    }
+
+    @Override
+    public int available() {
+        return heads.size() + buffers.stream().mapToInt(buffer -> buffer.size()).sum();
+    }
+
+    @Override
+    public void close() {
+        fClosed = true;
+        buffers.forEach(buffer -> buffer.clear()); // unblocks reading threads
+    }
+
+    @Override
+    public ServerCursor getServerCursor() {
+        return null;    // several server cursors are involved
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+        return null;    // several server cursors are involved
+    }
+}
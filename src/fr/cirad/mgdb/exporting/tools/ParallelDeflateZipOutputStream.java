@@ -0,0 +1,467 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * ZipOutputStream producing standard zip archives, where DEFLATED entries get compressed in parallel, pigz-style: data is split into fixed-size blocks
+ * which are deflated concurrently (each primed with the last 32 KB of the previous block, so compression ratio is hardly affected) and concatenated in order.
+ * STORED entries whose size and CRC are not provided beforehand (e.g. already-compressed payloads being streamed) are written as DEFLATED at level 0,
+ * i.e. as stored deflate blocks: this costs next to nothing and, unlike STORED entries with a data descriptor, remains readable by java.util.zip.ZipInputStream.
+ * Zip64 extensions are used when needed, like ZipOutputStream does.
+ */
+public class ParallelDeflateZipOutputStream extends ZipOutputStream
+{
+    /** The Constant COPY_BUFFER_SIZE, recommended when copying files into archives. */
+    public static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    /** The Constant BLOCK_SIZE. */
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    /** The Constant DICTIONARY_SIZE. */
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /** The Constant MAX_PENDING_BLOCKS. */
+    static final int MAX_PENDING_BLOCKS = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+
+    private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008, FLAG_UTF8 = 0x0800;
+
+    private static final long LOCAL_HEADER_SIGNATURE = 0x04034b50L, DATA_DESCRIPTOR_SIGNATURE = 0x08074b50L, CENTRAL_HEADER_SIGNATURE = 0x02014b50L, END_SIGNATURE = 0x06054b50L, ZIP64_END_SIGNATURE = 0x06064b50L, ZIP64_LOCATOR_SIGNATURE = 0x07064b50L;
+
+    /** File extensions for which there is no point in compressing contents again */
+    private static final String[] COMPRESSED_FILE_EXTENSIONS = new String[] {".gz", ".bgz", ".bgzf", ".zip", ".bz2", ".xz", ".zst", ".bam", ".cram", ".tbi", ".csi", ".png", ".jpg", ".jpeg"};
+
+    /** Pool shared by all archives being written */
+    private static final ExecutorService deflatingExecutor = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "ZipBlockDeflater");
+        t.setDaemon(true);
+        return t;
+    }) {{ allowCoreThreadTimeOut(true); }};
+
+    private static class EntryInfo {
+        byte[] name;
+        int flags, method, level, dosTime;
+        long crc, compressedSize, size, offset, dataOffset;
+        long expectedSize = -1, expectedCrc = -1;   // only for STORED entries whose size and CRC were provided in advance
+    }
+
+    private final List<EntryInfo> entries = new ArrayList<>();
+
+    private final Set<String> entryNames = new HashSet<>();
+
+    private final byte[] headerBuffer = new byte[8];
+
+    private final CRC32 crc = new CRC32();
+
+    private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+    private int nLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private int nDefaultMethod = DEFLATED;
+
+    private long nWrittenByteCount = 0;
+
+    private EntryInfo currentEntry = null;
+
+    private byte[] block, previousBlock;
+
+    private int nBlockFill, nPreviousBlockLength;
+
+    private boolean fFinished = false, fClosed = false;
+
+    /**
+     * Instantiates a new parallel deflate zip output stream.
+     *
+     * @param out the actual output stream
+     */
+    public ParallelDeflateZipOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Tells whether a file's contents are most likely compressed already, judging by its name.
+     *
+     * @param fileName the file name
+     * @return true if the file should be stored rather than deflated
+     */
+    public static boolean isAlreadyCompressed(String fileName) {
+        String lowerCaseName = fileName.toLowerCase();
+        for (String extension : COMPRESSED_FILE_EXTENSIONS)
+            if (lowerCaseName.endsWith(extension))
+                return true;
+        return false;
+    }
+
+    @Override
+    public void setLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("invalid compression level");
+        nLevel = level;
+    }
+
+    @Override
+    public void setMethod(int method) {
+        if (method != DEFLATED && method != STORED)
+            throw new IllegalArgumentException("invalid compression method");
+        nDefaultMethod = method;
+    }
+
+    @Override
+    public void setComment(String comment) {
+        // archive comments are not supported
+    }
+
+    private void ensureOpen() throws IOException {
+        if (fClosed)
+            throw new IOException("Stream closed");
+    }
+
+    private void writeRaw(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        nWrittenByteCount += len;
+    }
+
+    private void writeShort(int v) throws IOException {
+        headerBuffer[0] = (byte) v;
+        headerBuffer[1] = (byte) (v >>> 8);
+        writeRaw(headerBuffer, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        for (int i=0; i<4; i++)
+            headerBuffer[i] = (byte) (v >>> (8 * i));
+        writeRaw(headerBuffer, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        for (int i=0; i<8; i++)
+            headerBuffer[i] = (byte) (v >>> (8 * i));
+        writeRaw(headerBuffer, 0, 8);
+    }
+
+    private static int toDosTime(long time) {
+        LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (d.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (d.getYear() - 1980) << 25 | d.getMonthValue() << 21 | d.getDayOfMonth() << 16 | d.getHour() << 11 | d.getMinute() << 5 | d.getSecond() >> 1;
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry e) throws IOException {
+        ensureOpen();
+        if (currentEntry != null)
+            closeEntry();
+        if (!entryNames.add(e.getName()))
+            throw new ZipException("duplicate entry: " + e.getName());
+
+        EntryInfo entry = new EntryInfo();
+        entry.name = e.getName().getBytes(StandardCharsets.UTF_8);
+        entry.method = e.getMethod() == -1 ? nDefaultMethod : e.getMethod();
+        entry.level = nLevel;
+        entry.dosTime = toDosTime(e.getTime() == -1 ? System.currentTimeMillis() : e.getTime());
+        entry.offset = nWrittenByteCount;
+        boolean fSizeKnownInAdvance = entry.method == STORED && e.getSize() != -1 && e.getCrc() != -1;
+        if (entry.method == STORED && !fSizeKnownInAdvance) {
+            entry.method = DEFLATED;
+            entry.level = Deflater.NO_COMPRESSION;
+        }
+        entry.flags = FLAG_UTF8 | (fSizeKnownInAdvance ? 0 : FLAG_DATA_DESCRIPTOR);
+        if (fSizeKnownInAdvance) {
+            entry.expectedSize = e.getSize();
+            entry.expectedCrc = e.getCrc();
+        }
+        boolean fZip64 = fSizeKnownInAdvance && entry.expectedSize >= ZIP64_MAGICVAL;
+
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(fZip64 ? 45 : 20);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(fSizeKnownInAdvance ? entry.expectedCrc : 0);
+        writeInt(fSizeKnownInAdvance ? Math.min(entry.expectedSize, ZIP64_MAGICVAL) : 0);
+        writeInt(fSizeKnownInAdvance ? Math.min(entry.expectedSize, ZIP64_MAGICVAL) : 0);
+        writeShort(entry.name.length);
+        writeShort(fZip64 ? 20 : 0);
+        writeRaw(entry.name, 0, entry.name.length);
+        if (fZip64) {
+            writeShort(1);  // zip64 extra field
+            writeShort(16);
+            writeLong(entry.expectedSize);
+            writeLong(entry.expectedSize);
+        }
+
+        entry.dataOffset = nWrittenByteCount;
+        currentEntry = entry;
+        crc.reset();
+        block = entry.method == DEFLATED ? new byte[BLOCK_SIZE] : null;
+        previousBlock = null;
+        nBlockFill = 0;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off > b.length - len)
+            throw new IndexOutOfBoundsException();
+        if (currentEntry == null)
+            throw new ZipException("no current ZIP entry");
+        if (len == 0)
+            return;
+
+        crc.update(b, off, len);
+        if (currentEntry.method == STORED) {
+            writeRaw(b, off, len);
+            return;
+        }
+
+        currentEntry.size += len;
+        while (len > 0) {
+            int nCopied = Math.min(len, BLOCK_SIZE - nBlockFill);
+            System.arraycopy(b, off, block, nBlockFill, nCopied);
+            nBlockFill += nCopied;
+            off += nCopied;
+            len -= nCopied;
+            if (nBlockFill == BLOCK_SIZE)
+                submitBlock(false);
+        }
+    }
+
+    private void submitBlock(boolean fLastBlock) throws IOException {
+        final byte[] data = block, dictionary = previousBlock;
+        final int nLength = nBlockFill, nDictionaryEnd = nPreviousBlockLength, nBlockLevel = currentEntry.level;
+        if (pendingBlocks.size() >= MAX_PENDING_BLOCKS)
+            writeNextPendingBlock();
+        pendingBlocks.add(deflatingExecutor.submit(() -> deflateBlock(data, nLength, dictionary, nDictionaryEnd, nBlockLevel, fLastBlock)));
+        previousBlock = block;
+        nPreviousBlockLength = nLength;
+        block = fLastBlock ? null : new byte[BLOCK_SIZE];
+        nBlockFill = 0;
+    }
+
+    private void writeNextPendingBlock() throws IOException {
+        byte[] compressedBlock;
+        try {
+            compressedBlock = pendingBlocks.poll().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing zip entry", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Unable to compress zip entry", e.getCause());
+        }
+        writeRaw(compressedBlock, 0, compressedBlock.length);
+        currentEntry.compressedSize += compressedBlock.length;
+    }
+
+    /**
+     * Deflates a block into a raw deflate stream fragment: fragments of consecutive blocks may be concatenated, the last one being the only one flagged as final.
+     * The dictionary is the end of the previous block, which is shorter than a full block when the stream was flushed.
+     */
+    private static byte[] deflateBlock(byte[] data, int nLength, byte[] dictionary, int nDictionaryEnd, int nLevel, boolean fLastBlock) {
+        Deflater deflater = new Deflater(nLevel, true);
+        try {
+            if (dictionary != null)
+                deflater.setDictionary(dictionary, Math.max(0, nDictionaryEnd - DICTIONARY_SIZE), Math.min(nDictionaryEnd, DICTIONARY_SIZE));
+            deflater.setInput(data, 0, nLength);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(nLength / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (fLastBlock) {
+                deflater.finish();
+                while (!deflater.finished())
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            else {  // sync flush: output ends on a byte boundary without closing the stream
+                int nDeflated;
+                do {
+                    nDeflated = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, nDeflated);
+                } while (nDeflated == buffer.length);
+            }
+            return compressed.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        ensureOpen();
+        if (currentEntry == null)
+            return;
+
+        EntryInfo entry = currentEntry;
+        if (entry.method == DEFLATED) {
+            submitBlock(true);
+            while (!pendingBlocks.isEmpty())
+                writeNextPendingBlock();
+        }
+        else {
+            entry.size = entry.compressedSize = nWrittenByteCount - entry.dataOffset;
+            if (entry.expectedSize != -1 && entry.size != entry.expectedSize)
+                throw new ZipException("invalid entry size (expected " + entry.expectedSize + " but got " + entry.size + " bytes)");
+            if (entry.expectedCrc != -1 && crc.getValue() != entry.expectedCrc)
+                throw new ZipException("invalid entry crc-32 (expected 0x" + Long.toHexString(entry.expectedCrc) + " but got 0x" + Long.toHexString(crc.getValue()) + ")");
+        }
+        entry.crc = crc.getValue();
+
+        if ((entry.flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            writeInt(DATA_DESCRIPTOR_SIGNATURE);
+            writeInt(entry.crc);
+            if (entry.compressedSize >= ZIP64_MAGICVAL || entry.size >= ZIP64_MAGICVAL) {
+                writeLong(entry.compressedSize);
+                writeLong(entry.size);
+            }
+            else {
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+            }
+        }
+        entries.add(entry);
+        currentEntry = null;
+        block = previousBlock = null;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        ensureOpen();
+        if (fFinished)
+            return;
+        if (currentEntry != null)
+            closeEntry();
+
+        long nCentralDirectoryOffset = nWrittenByteCount;
+        for (EntryInfo entry : entries) {
+            boolean fZip64Size = entry.size >= ZIP64_MAGICVAL, fZip64CompressedSize = entry.compressedSize >= ZIP64_MAGICVAL, fZip64Offset = entry.offset >= ZIP64_MAGICVAL;
+            int nExtraLength = (fZip64Size ? 8 : 0) + (fZip64CompressedSize ? 8 : 0) + (fZip64Offset ? 8 : 0);
+            int nVersion = nExtraLength > 0 ? 45 : 20;
+            writeInt(CENTRAL_HEADER_SIGNATURE);
+            writeShort(nVersion);
+            writeShort(nVersion);
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(fZip64CompressedSize ? ZIP64_MAGICVAL : entry.compressedSize);
+            writeInt(fZip64Size ? ZIP64_MAGICVAL : entry.size);
+            writeShort(entry.name.length);
+            writeShort(nExtraLength > 0 ? nExtraLength + 4 : 0);
+            writeShort(0);  // comment length
+            writeShort(0);  // disk number
+            writeShort(0);  // internal attributes
+            writeInt(0);    // external attributes
+            writeInt(fZip64Offset ? ZIP64_MAGICVAL : entry.offset);
+            writeRaw(entry.name, 0, entry.name.length);
+            if (nExtraLength > 0) {
+                writeShort(1);  // zip64 extra field
+                writeShort(nExtraLength);
+                if (fZip64Size)
+                    writeLong(entry.size);
+                if (fZip64CompressedSize)
+                    writeLong(entry.compressedSize);
+                if (fZip64Offset)
+                    writeLong(entry.offset);
+            }
+        }
+        long nCentralDirectorySize = nWrittenByteCount - nCentralDirectoryOffset;
+
+        if (entries.size() >= ZIP64_MAGICCOUNT || nCentralDirectoryOffset >= ZIP64_MAGICVAL || nCentralDirectorySize >= ZIP64_MAGICVAL) {
+            long nZip64EndOffset = nWrittenByteCount;
+            writeInt(ZIP64_END_SIGNATURE);
+            writeLong(44);  // size of the rest of this record
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(nCentralDirectorySize);
+            writeLong(nCentralDirectoryOffset);
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0);
+            writeLong(nZip64EndOffset);
+            writeInt(1);
+        }
+        writeInt(END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entries.size(), ZIP64_MAGICCOUNT));
+        writeShort(Math.min(entries.size(), ZIP64_MAGICCOUNT));
+        writeInt(Math.min(nCentralDirectorySize, ZIP64_MAGICVAL));
+        writeInt(Math.min(nCentralDirectoryOffset, ZIP64_MAGICVAL));
+        writeShort(0);  // comment length
+        out.flush();
+        fFinished = true;
+    }
+
+    /**
+     * Pushes all data written so far to the underlying stream, which is flushed too. Deflating is restarted on a new block (primed with the data preceding it), so flushing too often degrades compression.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (currentEntry != null && currentEntry.method == DEFLATED) {
+            if (nBlockFill > 0)
+                submitBlock(false);
+            while (!pendingBlocks.isEmpty())
+                writeNextPendingBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fClosed)
+            return;
+        try {
+            finish();
+        }
+        finally {
+            fClosed = true;
+            def.end();  // the parent class' deflater is never used
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongodao.PositionKey;
+
+/**
+ * Reads documents sorted by {sequence ordinal, start site, _id} through successive short queries, each one resuming strictly after the last key
+ * returned by the previous one (see PositionKey), rather than through a single long-lived cursor. This way no server cursor stays open while pages
+ * are being exported (aggregation cursors can't be kept from timing out), and each page costs the same whatever its rank.
+ * The collection must have the sequence ordinal index (see MgdbDao.hasSequenceOrdinalIndex).
+ * When keys have no ID, a full page is trimmed of the documents at its last position, which the next page then starts with. A position holding more
+ * than a page of documents is itself read in pages, each one made of complete groups (e.g. all runs of a variant) and resuming after the previous one's last group.
+ */
+public class PositionKeysetCursor<T> implements MongoCursor<T>
+{
+    private final MongoCollection<?> collection;
+
+    private final Class<T> resultClass;
+
+    private final Document filter;
+
+    private final List<? extends Bson> tailStages;
+
+    private final int nPageSize;
+
+    private final Function<T, PositionKey> keyExtractor;
+
+    private final Comparator<T> pageComparator;
+
+    private final String groupPath;
+
+    private final Function<T, Object> groupExtractor;
+
+    private List<T> page = Collections.emptyList();
+
+    private int nNextIndex = 0;
+
+    private PositionKey lastKey = null;
+
+    private PositionKey crowdedPosition = null;  // set while reading a position that holds more than a page of documents
+
+    private Object lastGroup = null;
+
+    private boolean fExhausted = false, fClosed = false;
+
+    /**
+     * Instantiates a new position keyset cursor. Nothing is read until hasNext() gets called.
+     *
+     * @param collection the collection to read
+     * @param resultClass the class to decode documents into
+     * @param filter the filter (null for none), ideally purely positional and with sequence ordinal bounds (see PositionKey)
+     * @param tailStages aggregation stages to apply to each page once sorted and limited (e.g. $project), which must keep position fields
+     * @param nPageSize the number of documents to read per page
+     * @param keyExtractor gets a decoded document's key
+     * @param pageComparator sorts each page's contents once read, e.g. to group runs by variant (null to keep them in key order). Only suitable for keys without ID, since pages then hold complete positions
+     * @param groupPath the field by which to page within a position holding more than a page of documents, e.g. runs' variant ID (only used with keys without ID)
+     * @param groupExtractor gets a decoded document's groupPath value
+     */
+    public PositionKeysetCursor(MongoCollection<?> collection, Class<T> resultClass, Document filter, List<? extends Bson> tailStages, int nPageSize, Function<T, PositionKey> keyExtractor, Comparator<T> pageComparator, String groupPath, Function<T, Object> groupExtractor) {
+        this.collection = collection;
+        this.resultClass = resultClass;
+        this.filter = filter == null || filter.isEmpty() ? null : filter;
+        this.tailStages = tailStages;
+        this.nPageSize = nPageSize;
+        this.keyExtractor = keyExtractor;
+        this.pageComparator = pageComparator;
+        this.groupPath = groupPath;
+        this.groupExtractor = groupExtractor;
+    }
+
+    private List<T> readNextPage() {
+        if (crowdedPosition != null)
+            return readNextCrowdedPositionPage();
+
+        List<T> results = read(lastKey == null ? filter : lastKey.getFollowingKeysFilter(filter), PositionKey.getIndexKeys(), nPageSize);
+        if (results.size() < nPageSize) {
+            fExhausted = true;
+            return sort(results);
+        }
+
+        PositionKey key = keyExtractor.apply(results.get(results.size() - 1));
+        if (!key.hasId()) {   // more documents at that position may follow: leave them for next page
+            int nKeptCount = results.size();
+            while (nKeptCount > 0 && keyExtractor.apply(results.get(nKeptCount - 1)).hasSamePosition(key))
+                nKeptCount--;
+            if (nKeptCount == 0) {  // the whole page is at a single position: read it by groups
+                crowdedPosition = key;
+                lastGroup = null;
+                return readNextCrowdedPositionPage();
+            }
+            else {
+                results = new ArrayList<>(results.subList(0, nKeptCount));
+                key = keyExtractor.apply(results.get(nKeptCount - 1));
+            }
+        }
+        lastKey = key;
+        return sort(results);
+    }
+
+    private List<T> readNextCrowdedPositionPage() {
+        Document positionFilter = and(filter, crowdedPosition.getPositionFilter()), groupSort = new Document(groupPath, 1);
+        List<T> results = read(lastGroup == null ? positionFilter : and(positionFilter, new Document(groupPath, new Document("$gt", lastGroup))), groupSort, nPageSize);
+        if (results.size() < nPageSize) {   // done with that position
+            lastKey = crowdedPosition;
+            crowdedPosition = null;
+            return sort(results);
+        }
+
+        Object group = groupExtractor.apply(results.get(results.size() - 1));
+        int nKeptCount = results.size();
+        while (nKeptCount > 0 && group.equals(groupExtractor.apply(results.get(nKeptCount - 1))))
+            nKeptCount--;
+        if (nKeptCount == 0)    // a single group fills the page: read it all at once
+            results = read(and(positionFilter, new Document(groupPath, group)), groupSort, 0);
+        else {
+            results = new ArrayList<>(results.subList(0, nKeptCount));
+            group = groupExtractor.apply(results.get(nKeptCount - 1));
+        }
+        lastGroup = group;
+        return sort(results);
+    }
+
+    private List<T> sort(List<T> results) {
+        if (pageComparator != null)
+            results.sort(pageComparator);
+        return results;
+    }
+
+    private List<T> read(Document pageFilter, Document sort, int nLimit) {
+        List<Bson> pipeline = new ArrayList<>();
+        if (pageFilter != null)
+            pipeline.add(new Document("$match", pageFilter));
+        pipeline.add(new Document("$sort", sort));
+        if (nLimit > 0)
+            pipeline.add(new Document("$limit", nLimit));
+        pipeline.addAll(tailStages);
+        return collection.aggregate(pipeline, resultClass).hint(PositionKey.getIndexKeys()).allowDiskUse(true).batchSize(nPageSize).into(new ArrayList<>(nPageSize));
+    }
+
+    private static Document and(Document filter1, Document filter2) {
+        return filter1 == null ? filter2 : new Document("$and", Arrays.asList(filter1, filter2));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!fClosed && nNextIndex == page.size() && !fExhausted) {
+            page = readNextPage();
+            nNextIndex = 0;
+        }
+        return !fClosed && nNextIndex < page.size();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return page.get(nNextIndex++);
+    }
+
+    @Override
+    public T tryNext() {
+        return hasNext() ? page.get(nNextIndex++) : null;
+    }
+
+    @Override
+    public int available() {
+        return fClosed ? 0 : page.size() - nNextIndex;
+    }
+
+    @Override
+    public void close() {
+        fClosed = true;
+    }
+
+    @Override
+    public ServerCursor getServerCursor() {
+        return null;    // no server cursor is kept open between pages
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+        return null;    // no server cursor is kept open between pages
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.util.Date;
+import java.util.Objects;
+
+import org.apache.log4j.Logger;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.ReplaceOptions;
+
+import fr.cirad.mgdb.model.mongo.maintypes.DatabaseInformation;
+
+/**
+ * Persisted record of how fast exports read data with and without an exclusive $project stage, for each pipeline shape and share of exported samples,
+ * so that ExportManager only needs to compare both options (which costs time) when previous comparisons on the same data are missing or inconclusive.
+ * Observations are stored in each module's database as running statistics of log(time without $project / time with $project), and forgotten once the
+ * database's dbInfo lastModification changes.
+ */
+public class ProjectStageCostModel
+{
+    private static final Logger LOG = Logger.getLogger(ProjectStageCostModel.class);
+
+    /** The Constant COLLECTION_NAME. */
+    static final public String COLLECTION_NAME = "projectStageTimings";
+
+    /** The number of observations below which a decision is never considered reliable */
+    static final private int MIN_OBSERVATION_COUNT = 3;
+
+    /** The number of observations above which the mean is trusted even if inconclusive (both options then perform alike, there is no point probing forever) */
+    static final private int MAX_OBSERVATION_COUNT = 10;
+
+    static final private String FIELDNAME_LAST_MODIFICATION = "lm", FIELDNAME_COUNT = "n", FIELDNAME_MEAN = "mean", FIELDNAME_M2 = "m2";
+
+    /** What to do with an exclusive $project stage */
+    public enum Decision { KEEP, REMOVE, PROBE }
+
+    /**
+     * Tells whether an export should keep its $project stage, remove it, or compare both options.
+     *
+     * @param mongoTemplate the module's template
+     * @param sPipelineShape identifies the way data is read (timings are only comparable for a given one)
+     * @param nPercentageOfExportedSamples the percentage of the module's samples being exported
+     * @param dRemovalThreshold the ratio (time without $project / time with it) below which removing $project is worth it
+     * @return the decision
+     */
+    public static Decision decide(MongoTemplate mongoTemplate, String sPipelineShape, long nPercentageOfExportedSamples, double dRemovalThreshold) {
+        Document model = getModel(mongoTemplate, sPipelineShape, nPercentageOfExportedSamples);
+        if (model == null)
+            return Decision.PROBE;
+
+        int n = model.getInteger(FIELDNAME_COUNT);
+        double mean = model.getDouble(FIELDNAME_MEAN), distanceToThreshold = mean - Math.log(dRemovalThreshold);
+        double standardError = n < 2 ? Double.POSITIVE_INFINITY : Math.sqrt(model.getDouble(FIELDNAME_M2) / (n - 1) / n);
+        if (n < MIN_OBSERVATION_COUNT || (n < MAX_OBSERVATION_COUNT && Math.abs(distanceToThreshold) <= 2 * standardError))
+            return Decision.PROBE;
+        return distanceToThreshold < 0 ? Decision.REMOVE : Decision.KEEP;
+    }
+
+    /**
+     * Records the outcome of a comparison.
+     *
+     * @param mongoTemplate the module's template
+     * @param sPipelineShape identifies the way data was read
+     * @param nPercentageOfExportedSamples the percentage of the module's samples that were exported
+     * @param nTimeWithoutProjectStage the time spent reading without $project
+     * @param nTimeWithProjectStage the time spent reading the same amount of data with $project
+     */
+    public static void recordObservation(MongoTemplate mongoTemplate, String sPipelineShape, long nPercentageOfExportedSamples, long nTimeWithoutProjectStage, long nTimeWithProjectStage) {
+        if (nTimeWithoutProjectStage <= 0 || nTimeWithProjectStage <= 0)
+            return;    // too fast to tell anything
+
+        try {
+            Document model = getModel(mongoTemplate, sPipelineShape, nPercentageOfExportedSamples);
+            int n = model == null ? 0 : model.getInteger(FIELDNAME_COUNT);
+            double mean = model == null ? 0 : model.getDouble(FIELDNAME_MEAN), m2 = model == null ? 0 : model.getDouble(FIELDNAME_M2);
+
+            // Welford's online update
+            double x = Math.log((double) nTimeWithoutProjectStage / nTimeWithProjectStage), delta = x - mean;
+            n++;
+            mean += delta / n;
+            m2 += delta * (x - mean);
+
+            String id = getModelId(sPipelineShape, nPercentageOfExportedSamples);
+            Document newModel = new Document("_id", id).append(FIELDNAME_LAST_MODIFICATION, getLastModification(mongoTemplate)).append(FIELDNAME_COUNT, n).append(FIELDNAME_MEAN, mean).append(FIELDNAME_M2, m2);
+            getCollection(mongoTemplate).replaceOne(new Document("_id", id), newModel, new ReplaceOptions().upsert(true));
+        }
+        catch (Exception e) {
+            LOG.warn("Unable to record $project stage timings", e);    // only an optimization
+        }
+    }
+
+    /**
+     * @return the model's document, null if there is none or if the data changed since it was built
+     */
+    private static Document getModel(MongoTemplate mongoTemplate, String sPipelineShape, long nPercentageOfExportedSamples) {
+        Document model = getCollection(mongoTemplate).find(new Document("_id", getModelId(sPipelineShape, nPercentageOfExportedSamples))).first();
+        return model != null && Objects.equals(model.getDate(FIELDNAME_LAST_MODIFICATION), getLastModification(mongoTemplate)) ? model : null;
+    }
+
+    /**
+     * Timings are kept separately for each tenth of exported sample percentage.
+     */
+    private static String getModelId(String sPipelineShape, long nPercentageOfExportedSamples) {
+        return sPipelineShape + "_" + (nPercentageOfExportedSamples / 10 * 10);
+    }
+
+    private static Date getLastModification(MongoTemplate mongoTemplate) {
+        DatabaseInformation dbInfo = mongoTemplate.findOne(new Query(), DatabaseInformation.class, "dbInfo");
+        return dbInfo == null ? null : dbInfo.getLastModification();
+    }
+
+    private static MongoCollection<Document> getCollection(MongoTemplate mongoTemplate) {
+        return mongoTemplate.getCollection(COLLECTION_NAME);
+    }
+}
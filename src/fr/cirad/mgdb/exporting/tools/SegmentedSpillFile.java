@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.exporting.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single temporary file receiving data destined to a fixed number of slots (e.g. one per exported individual), one chunk at a time.
+ * Each chunk is appended sequentially as consecutive per-slot segments, and an in-memory index of segment offsets allows streaming back any slot's contents in chunk order.
+ * This replaces reopening one file per slot for each chunk, which gets very expensive with thousands of slots.
+ */
+public class SegmentedSpillFile implements Closeable
+{
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final int nSlotCount;
+
+    /** For each chunk, the position in the file of each slot's segment, followed by the chunk's end position (segment lengths being the differences) */
+    private final List<long[]> chunkSegmentOffsets = new ArrayList<>();
+
+    private long position = 0;
+
+    /**
+     * Instantiates a new segmented spill file.
+     *
+     * @param filePrefix prefix for the temporary file's name
+     * @param nSlotCount the number of slots
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public SegmentedSpillFile(String filePrefix, int nSlotCount) throws IOException {
+        this.nSlotCount = nSlotCount;
+        file = File.createTempFile(filePrefix, ".spill");	// deleted by close()
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Appends a chunk.
+     *
+     * @param segments one segment per slot (null for an empty segment)
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public synchronized void appendChunk(byte[][] segments) throws IOException {
+        if (segments.length != nSlotCount)
+            throw new IllegalArgumentException("Expected " + nSlotCount + " segments, got " + segments.length);
+
+        long[] offsets = new long[nSlotCount + 1];
+        List<ByteBuffer> buffers = new ArrayList<>(nSlotCount);
+        offsets[0] = position;
+        for (int i=0; i<nSlotCount; i++) {
+            offsets[i + 1] = offsets[i];
+            if (segments[i] != null && segments[i].length > 0) {
+                offsets[i + 1] += segments[i].length;
+                buffers.add(ByteBuffer.wrap(segments[i]));
+            }
+        }
+
+        chunkSegmentOffsets.add(offsets);
+        ByteBuffer[] bufferArray = buffers.toArray(new ByteBuffer[buffers.size()]);
+        channel.position(position);
+        long nRemaining = offsets[nSlotCount] - position;
+        while (nRemaining > 0)    // gathering write: a single sequential append for the whole chunk
+            nRemaining -= channel.write(bufferArray);
+        position = channel.position();
+    }
+
+    /**
+     * Streams a slot's segments, in chunk order, to a target channel.
+     *
+     * @param nSlot the slot
+     * @param target the target channel
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public synchronized void transferSlotTo(int nSlot, WritableByteChannel target) throws IOException {
+        for (long[] offsets : chunkSegmentOffsets) {
+            long segmentStart = offsets[nSlot], nLength = offsets[nSlot + 1] - segmentStart, nTransferred = 0;
+            while (nTransferred < nLength)
+                nTransferred += channel.transferTo(segmentStart + nTransferred, nLength - nTransferred, target);
+        }
+    }
+
+    /**
+     * Closes and deletes the underlying file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        file.delete();
+    }
+}
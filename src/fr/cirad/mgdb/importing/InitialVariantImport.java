@@ -23,9 +23,9 @@ import java.io.FileReader;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-//import java.util.HashMap;
 //import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 //import java.util.Scanner;
 import java.util.TreeSet;
 
@@ -36,6 +36,7 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 
 import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
 import fr.cirad.tools.Helper;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 
@@ -144,6 +145,7 @@ public class InitialVariantImport {
 				long count = 0;
 				int nNumberOfVariantsToSaveAtOnce = 50000;
 				ArrayList<VariantData> unsavedVariants = new ArrayList<VariantData>();
+				Map<String, Integer> sequenceOrdinals = MgdbDao.getSequenceOrdinals(mongoTemplate);	// those of new sequences get allocated by MgdbDao.updateSequenceOrdinals
 				List<String> fieldsExceptSynonyms = Arrays.asList(new String[] {"id", "type", "pos", "chip"}); 
 				do
 				{
@@ -154,7 +156,10 @@ public class InitialVariantImport {
 						variant.setType(cells.get(header.indexOf("type")));
 						String[] seqAndPos = cells.get(header.indexOf("pos")).split(":");
 						if (seqAndPos.length == 2 && !seqAndPos[0].equals("0"))
+						{
 							variant.setReferencePosition(new ReferencePosition(seqAndPos[0], Long.parseLong(seqAndPos[1])));
+							MgdbDao.assignSequenceOrdinals(sequenceOrdinals, Arrays.asList(variant.getReferencePosition()));	// the database being empty, there is no ordinal index to drop
+						}
 						
 						if (!variant.getId().toString().startsWith("*"))	// otherwise it's a deprecated variant that we don't want to appear
 						{
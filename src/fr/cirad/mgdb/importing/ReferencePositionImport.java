@@ -20,7 +20,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.springframework.context.support.GenericXmlApplicationContext;
@@ -34,6 +36,7 @@ import com.mongodb.client.result.UpdateResult;
 
 import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
 import fr.cirad.tools.Helper;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 
@@ -123,6 +126,8 @@ public class ReferencePositionImport {
 					throw new Exception("DATASOURCE '" + args[0] + "' is not supported!");
 			}
 
+			Map<String, Integer> sequenceOrdinals = MgdbDao.getSequenceOrdinals(mongoTemplate);	// those of new sequences get allocated by MgdbDao.updateSequenceOrdinals
+			boolean fSequenceOrdinalIndexesDropped = false;
 			for (int i=0; i<chipInfoFiles.length; i++)
 			{
 				int nVariantIndex = 0;
@@ -159,6 +164,13 @@ public class ReferencePositionImport {
 								else
 								{
 									ReferencePosition chromPos = new ReferencePosition(cells.get(nMarkerChrColNum), Integer.parseInt(cells.get(nMarkerPosColNum)));
+									if (variant.getReferencePosition() != null && variant.getReferencePosition().getBucket() != null)
+										chromPos.setBucket(ReferencePosition.getBucket(chromPos.getStartSite()));	// keep position bucket consistent
+									if (!MgdbDao.assignSequenceOrdinals(sequenceOrdinals, Arrays.asList(chromPos)) && !fSequenceOrdinalIndexesDropped)	// and sequence ordinal
+									{
+										MgdbDao.dropSequenceOrdinalIndexes(mongoTemplate, "positions on new sequences are being imported");
+										fSequenceOrdinalIndexesDropped = true;
+									}
 									if (chromPos.equals(variant.getReferencePosition()))
 									{
 										LOG.warn("No change to apply: " + cells.get(nMarkerNameColNum) + " (" + nVariantIndex + ")");
@@ -135,7 +135,7 @@ public class VcfImport extends AbstractGenotypeImport {
      */
     public static void main(String[] args) throws Exception {
         if (args.length < 5) {
-            throw new Exception("You must pass 5 parameters as arguments: DATASOURCE name, PROJECT name, RUN name, TECHNOLOGY string, and VCF file! An optional 6th parameter supports values '1' (empty project data before importing) and '2' (empty all variant data before importing, including marker list)");
+            throw new Exception("You must pass 5 parameters as arguments: DATASOURCE name, PROJECT name, RUN name, TECHNOLOGY string, and VCF file! An optional 6th parameter supports values '1' (empty project data before importing) and '2' (empty all variant data before importing, including marker list). An optional 7th parameter may list storage options to enable, separated by commas: numericKeys, positionBuckets, leanRuns");
         }
 
         File mainFile = new File(args[4]);
@@ -149,7 +149,10 @@ public class VcfImport extends AbstractGenotypeImport {
         } catch (Exception e) {
             LOG.warn("Unable to parse input mode. Using default (0): overwrite run if exists.");
         }
-        new VcfImport().importToMongo(args[4].toLowerCase().endsWith(".bcf"), args[0], args[1], args[2], args[3], new File(args[4]).toURI().toURL(), null, false, mode);
+        VcfImport vcfImport = new VcfImport();
+        if (args.length > 6)
+            vcfImport.enableStorageOptions(args[6]);
+        vcfImport.importToMongo(args[4].toLowerCase().endsWith(".bcf"), args[0], args[1], args[2], args[3], new File(args[4]).toURI().toURL(), null, false, mode);
     }
 
     /**
@@ -436,9 +439,9 @@ public class VcfImport extends AbstractGenotypeImport {
             progress.markAsComplete();
             return createdProject;
         }
-        finally
+        finally
         {
-            if (m_fCloseContextOpenAfterImport && ctx != null)
+            if (m_fCloseContextOpenAfterImport && ctx != null)
                 ctx.close();
 
             reader.close();
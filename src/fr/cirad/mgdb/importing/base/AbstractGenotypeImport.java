@@ -26,6 +26,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
@@ -43,6 +44,7 @@ import org.springframework.data.mongodb.core.query.Query;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.result.DeleteResult;
 
+import fr.cirad.mgdb.model.mongo.maintypes.AutoIncrementCounter;
 import fr.cirad.mgdb.model.mongo.maintypes.DBVCFHeader;
 import fr.cirad.mgdb.model.mongo.maintypes.DBVCFHeader.VcfHeaderId;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingProject;
@@ -50,6 +52,7 @@ import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
+import fr.cirad.mgdb.model.mongo.subtypes.AbstractVariantData;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
 import fr.cirad.mgdb.model.mongodao.MgdbDao;
 import fr.cirad.tools.Helper;
@@ -66,6 +69,19 @@ public class AbstractGenotypeImport {
 
 	private boolean m_fAllowDbDropIfNoGenotypingData = true;
 
+	private boolean m_fAllocateNumericVariantKeys = false;
+
+	private boolean m_fStorePositionBuckets = false;
+
+	private boolean m_fCreateLeanRunDocuments = false;
+	
+	private boolean m_fDbFlaggedAsContainingLeanRuns = false;
+
+	/** Sequence ordinals allocated before this import started (batches may be persisted concurrently) */
+	private volatile Map<String, Integer> m_sequenceOrdinals = null;
+
+	private volatile boolean m_fSequenceOrdinalIndexesDropped = false;
+
 	public static ArrayList<String> getIdentificationStrings(String sType, String sSeq, Long nStartPos, Collection<String> idAndSynonyms) throws Exception
 	{
 		ArrayList<String> result = new ArrayList<String>();
@@ -245,8 +261,49 @@ public class AbstractGenotypeImport {
 		return nConcurrentThreads * 3;
 	}
 
+    /**
+     * Sets known sequence ordinals on the passed positions, which lets position sorts rely on plain numbers rather than on a numeric collation. New sequences
+     * get theirs via MgdbDao.updateSequenceOrdinals once the import is over: until then, ordinal indexes are dropped so that exports don't rely on them.
+     */
+    private void assignSequenceOrdinals(MongoTemplate mongoTemplate, Collection<ReferencePosition> positions) {
+    	if (m_sequenceOrdinals == null)
+    		synchronized (this) {
+    			if (m_sequenceOrdinals == null)
+    				m_sequenceOrdinals = MgdbDao.getSequenceOrdinals(mongoTemplate);
+    		}
+    	if (!MgdbDao.assignSequenceOrdinals(m_sequenceOrdinals, positions) && !m_fSequenceOrdinalIndexesDropped)
+    		synchronized (this) {
+    			if (!m_fSequenceOrdinalIndexesDropped) {
+    				MgdbDao.dropSequenceOrdinalIndexes(mongoTemplate, "positions on new sequences are being imported");
+    				m_fSequenceOrdinalIndexesDropped = true;
+    			}
+    		}
+    }
+
     public void persistVariantsAndGenotypes(boolean fDBAlreadyContainsVariants, MongoTemplate mongoTemplate, Collection<VariantData> unsavedVariants, Collection<VariantRunData> unsavedRuns) throws InterruptedException
     {
+    	if (m_fAllocateNumericVariantKeys)
+    		assignNumericVariantKeys(mongoTemplate, unsavedVariants, unsavedRuns);
+    	if (m_fStorePositionBuckets) {
+    		assignPositionBuckets(unsavedVariants);
+    		if (!m_fCreateLeanRunDocuments)	// lean runs carry no position
+    			assignPositionBuckets(unsavedRuns);
+    	}
+    	List<ReferencePosition> positions = new ArrayList<>(unsavedVariants.size() + unsavedRuns.size());
+    	for (AbstractVariantData variant : unsavedVariants)
+    		positions.add(variant.getReferencePosition());
+    	for (AbstractVariantData vrd : unsavedRuns)
+    		positions.add(vrd.getReferencePosition());
+    	assignSequenceOrdinals(mongoTemplate, positions);
+    	if (m_fCreateLeanRunDocuments) {
+    		if (!m_fDbFlaggedAsContainingLeanRuns) {
+    			MongoTemplateManager.setDatabaseContainsLeanRuns(mongoTemplate);	// lets exports know they need to fetch variant-level fields from VariantData
+    			m_fDbFlaggedAsContainingLeanRuns = true;
+    		}
+    		for (VariantRunData vrd : unsavedRuns)
+    			vrd.removeVariantLevelFields();
+    	}
+
 //    	long b4 = System.currentTimeMillis();
 		Thread vdAsyncThread = new Thread() {	// using 2 threads is faster when calling save, but slower when calling insert
 			public void run() {
@@ -301,6 +358,35 @@ public class AbstractGenotypeImport {
 //		System.err.println("VD: " + t1 + " / VRD: " + (System.currentTimeMillis() - b4));
     }
 
+    /**
+     * Gives a numeric key to variants that don't have one yet (reserving a single counter range for the whole chunk), and copies variants' numeric keys into their runs
+     */
+    private static void assignNumericVariantKeys(MongoTemplate mongoTemplate, Collection<VariantData> unsavedVariants, Collection<VariantRunData> unsavedRuns)
+    {
+    	List<VariantData> variantsWithoutKey = unsavedVariants.stream().filter(vd -> vd.getNumericKey() == null).collect(Collectors.toList());
+    	if (!variantsWithoutKey.isEmpty()) {
+    		long nextKey = AutoIncrementCounter.getNextSequenceRange(mongoTemplate, mongoTemplate.getCollectionName(VariantData.class), variantsWithoutKey.size());
+    		for (VariantData vd : variantsWithoutKey)
+    			vd.setNumericKey(nextKey++);
+    	}
+
+    	HashMap<String, Long> numericKeysByVariantId = new HashMap<>(unsavedVariants.size());
+    	for (VariantData vd : unsavedVariants)
+    		numericKeysByVariantId.put(vd.getId(), vd.getNumericKey());
+    	for (VariantRunData vrd : unsavedRuns)
+    		if (vrd.getNumericKey() == null)
+    			vrd.setNumericKey(numericKeysByVariantId.get(vrd.getId().getVariantId()));
+    }
+
+    private static void assignPositionBuckets(Collection<? extends AbstractVariantData> variants)
+    {
+    	for (AbstractVariantData variant : variants) {
+    		ReferencePosition rp = variant.getReferencePosition();
+    		if (rp != null)
+    			rp.setBucket(ReferencePosition.getBucket(rp.getStartSite()));
+    	}
+    }
+
     protected void cleanupBeforeImport(MongoTemplate mongoTemplate, String sModule, GenotypingProject project, int importMode, String sRun) {
         if (importMode == 2)
             mongoTemplate.getDb().drop(); // drop database before importing
@@ -353,6 +439,75 @@ public class AbstractGenotypeImport {
 		this.m_fAllowDbDropIfNoGenotypingData = fAllowDbDropIfNoGenotypingData;
 	}
 
+	public boolean isAllocatingNumericVariantKeys() {
+		return m_fAllocateNumericVariantKeys;
+	}
+
+	/**
+	 * When enabled, each newly imported variant gets a dense 64-bit numeric key (stored in its VariantData and VariantRunData records next to the original String ID),
+	 * which queries on large variant sets may then use instead of the String IDs
+	 *
+	 * @param fAllocateNumericVariantKeys whether or not to allocate numeric variant keys
+	 */
+	public void allocateNumericVariantKeys(boolean fAllocateNumericVariantKeys) {
+		this.m_fAllocateNumericVariantKeys = fAllocateNumericVariantKeys;
+	}
+
+	public boolean isStoringPositionBuckets() {
+		return m_fStorePositionBuckets;
+	}
+
+	/**
+	 * When enabled, reference positions of imported variants also get their position bucket (index of the ReferencePosition.BUCKET_SIZE-wide window they belong to)
+	 * stored, which allows region queries to first narrow down on a {sequence, bucket} index
+	 *
+	 * @param fStorePositionBuckets whether or not to store position buckets
+	 */
+	public void storePositionBuckets(boolean fStorePositionBuckets) {
+		this.m_fStorePositionBuckets = fStorePositionBuckets;
+	}
+
+	public boolean isCreatingLeanRunDocuments() {
+		return m_fCreateLeanRunDocuments;
+	}
+
+	/**
+	 * When enabled, VariantRunData documents are persisted without the variant-level fields (known alleles, type, position, synonyms) they usually duplicate from VariantData,
+	 * which makes them smaller and cheaper to write. Exports then select and sort variants from the VariantData collection and complete runs with its contents
+	 *
+	 * @param fCreateLeanRunDocuments whether or not to create lean run documents
+	 */
+	public void createLeanRunDocuments(boolean fCreateLeanRunDocuments) {
+		this.m_fCreateLeanRunDocuments = fCreateLeanRunDocuments;
+	}
+
+	/**
+	 * Enables the optional storage features named in a comma-separated list, as passed on importers' command lines:
+	 * numericKeys (see allocateNumericVariantKeys), positionBuckets (see storePositionBuckets) and leanRuns (see createLeanRunDocuments)
+	 *
+	 * @param sStorageOptions the comma-separated option names
+	 * @throws Exception if an option name is not supported
+	 */
+	public void enableStorageOptions(String sStorageOptions) throws Exception {
+		for (String sOption : sStorageOptions.split(",")) {
+			switch (sOption.trim()) {
+				case "numericKeys":
+					allocateNumericVariantKeys(true);
+					break;
+				case "positionBuckets":
+					storePositionBuckets(true);
+					break;
+				case "leanRuns":
+					createLeanRunDocuments(true);
+					break;
+				case "":
+					break;
+				default:
+					throw new Exception("Unsupported storage option: " + sOption);
+			}
+		}
+	}
+
 	/**
 	 * Code copied from htsjdk.variant.variantcontext.VariantContext (Copyright The Broad Institute) and adapted for convenience,
 	 */
@@ -25,6 +25,11 @@ import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
 /**
  * The Class AutoIncrementCounter.
  */
@@ -88,4 +93,19 @@ public class AutoIncrementCounter
 		mongo.save(counter);
 		return 1;
 	}
+
+	/**
+	 * Reserves a range of consecutive values in one go (avoids a round-trip per value when many of them are needed, e.g. for variant numeric keys).
+	 * Counters manipulated via this method are stored as 64-bit values.
+	 *
+	 * @param mongo the mongo
+	 * @param counterName the counter name
+	 * @param nRangeSize the number of values to reserve
+	 * @return the first value of the reserved range (the last one being this value + nRangeSize - 1)
+	 */
+	static synchronized public long getNextSequenceRange(MongoOperations mongo, String counterName, int nRangeSize)
+	{
+		org.bson.Document counter = mongo.getCollection(mongo.getCollectionName(AutoIncrementCounter.class)).findOneAndUpdate(Filters.eq("_id", counterName), Updates.inc("seq", (long) nRangeSize), new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+		return ((Number) counter.get("seq")).longValue() - nRangeSize + 1;
+	}
 }
\ No newline at end of file
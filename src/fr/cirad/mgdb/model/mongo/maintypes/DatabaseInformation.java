@@ -5,9 +5,11 @@ import java.util.Date;
 public class DatabaseInformation {
 	public static final String FIELDNAME_LAST_MODIFICATION = "lastModification";
 	public static final String FIELDNAME_RESTORE_DATE = "restoreDate";
+	public static final String FIELDNAME_LEAN_RUNS = "leanRuns";
 
 	private Date lastModification = null;
 	private Date restoreDate = null;
+	private boolean leanRuns = false;	// whether some VariantRunData documents were stored without variant-level fields
 	
 	public Date getLastModification() {
 		return lastModification;
@@ -24,4 +26,12 @@ public class DatabaseInformation {
 	public void setRestored(Date restoreDate) {
 		this.restoreDate = restoreDate;
 	}
+
+	public boolean containsLeanRuns() {
+		return leanRuns;
+	}
+
+	public void setLeanRuns(boolean leanRuns) {
+		this.leanRuns = leanRuns;
+	}
 }
@@ -20,6 +20,7 @@ import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -66,6 +67,9 @@ abstract public class AbstractVariantData
     /** The Constant FIELDNAME_REFERENCE_POSITION. */
     public final static String FIELDNAME_REFERENCE_POSITION = "rp";
     
+    /** The Constant FIELDNAME_NUMERIC_KEY. */
+    public final static String FIELDNAME_NUMERIC_KEY = "nk";
+
     /** The Constant FIELDNAME_PROJECT_DATA. */
     public final static String FIELDNAME_PROJECT_DATA = "pj";
     
@@ -145,6 +149,11 @@ abstract public class AbstractVariantData
     @Field(FIELDNAME_KNOWN_ALLELES)
     protected SetUniqueListWithConstructor<String> knownAlleles;
 
+    /** Optional dense numeric surrogate for the variant ID (only allocated when importing with numeric variant keys enabled) */
+    @BsonProperty(FIELDNAME_NUMERIC_KEY)
+    @Field(FIELDNAME_NUMERIC_KEY)
+    private Long numericKey = null;
+
     /** The additional info. */
     @BsonProperty(SECTION_ADDITIONAL_INFO)
     @Field(SECTION_ADDITIONAL_INFO)
@@ -410,6 +419,24 @@ abstract public class AbstractVariantData
         this.type = type == null ? null : type.intern();
     }
 
+    /**
+     * Gets the numeric key.
+     *
+     * @return the numeric key, null if none was allocated for this variant
+     */
+    public Long getNumericKey() {
+        return numericKey;
+    }
+
+    /**
+     * Sets the numeric key.
+     *
+     * @param numericKey the new numeric key
+     */
+    public void setNumericKey(Long numericKey) {
+        this.numericKey = numericKey;
+    }
+
     /**
      * Gets the reference position.
      *
@@ -450,6 +477,32 @@ abstract public class AbstractVariantData
             allele.intern();
     }
     
+    /**
+     * Fills in variant-level fields (known alleles, type, position, synonyms) this record is missing with those of another one, typically to complete a lean run document with its VariantData's contents
+     *
+     * @param source the record to take missing fields from
+     */
+    public void completeVariantLevelFields(AbstractVariantData source) {
+        if (knownAlleles == null || knownAlleles.isEmpty())
+            knownAlleles = source.knownAlleles;
+        if (referencePosition == null)
+            referencePosition = source.referencePosition;
+        if (type == null)
+            type = source.type;
+        if (synonyms == null)
+            synonyms = source.synonyms;
+    }
+
+    /**
+     * Removes variant-level fields (known alleles, type, position, synonyms), which lean run documents don't carry since they can be found in the VariantData collection
+     */
+    public void removeVariantLevelFields() {
+        knownAlleles = null;
+        referencePosition = null;
+        type = null;
+        synonyms = null;
+    }
+
     /**
      * Gets the additional info.
      *
@@ -484,7 +537,11 @@ abstract public class AbstractVariantData
             return new ArrayList<>(0);
 
         try    {
-            return Arrays.stream(code.split("[\\|/]")).map(alleleCodeIndex -> alleleList.get(Integer.parseInt(alleleCodeIndex))).collect(Collectors.toList());
+            int[] alleleIndexes = GenotypeCodeDecoder.decode(code);
+            ArrayList<String> alleles = new ArrayList<>(alleleIndexes.length);
+            for (int alleleIndex : alleleIndexes)
+                alleles.add(alleleList.get(alleleIndex));
+            return alleles;
         }
         catch (IndexOutOfBoundsException ioobe) {
             throw new NoSuchElementException("Variant has no such allele: " + ioobe.getMessage());
@@ -566,9 +623,9 @@ abstract public class AbstractVariantData
     }
         
     /**
-     * To variant context.
+     * To variant context. Builds a plan for this variant only: export handlers converting many variants should build a GenotypeExportPlan once and call the overload taking it.
      *
-     * @param MongoTemplate the mongoTemplate
+     * @param mongoTemplate the mongoTemplate
      * @param runs the runs
      * @param exportVariantIDs the export variant ids
      * @param samplesToExport overall list of samples involved in the export
@@ -585,6 +642,26 @@ abstract public class AbstractVariantData
      */
     public VariantContext toVariantContext(MongoTemplate mongoTemplate, Collection<VariantRunData> runs, boolean exportVariantIDs, List<GenotypingSample> samplesToExport, Map<String, Integer> individualPositions, Collection<String> individuals1, Collection<String> individuals2, HashMap<Integer, Object> previousPhasingIds, HashMap<String, Float> annotationFieldThresholds1, HashMap<String, Float> annotationFieldThresholds2, FileWriter warningFileWriter, Comparable synonym) throws Exception
     {
+        return toVariantContext(mongoTemplate, runs, exportVariantIDs, new GenotypeExportPlan(samplesToExport, individualPositions, individuals1, individuals2, annotationFieldThresholds1, annotationFieldThresholds2), previousPhasingIds, warningFileWriter, synonym);
+    }
+
+    /**
+     * To variant context, using a plan computed once for the whole export. Allele lists found incomplete are fixed in memory while looping over genotypes,
+     * and written back to the database (see GenotypeExportPlan.applyRepairs) before returning.
+     *
+     * @param mongoTemplate the mongoTemplate
+     * @param runs the runs
+     * @param exportVariantIDs the export variant ids
+     * @param plan the export's genotype export plan
+     * @param previousPhasingIds the previous phasing ids
+     * @param warningFileWriter the warning file writer
+     * @param synonym the synonym
+     * @return the variant context
+     * @throws Exception the exception
+     */
+    public VariantContext toVariantContext(MongoTemplate mongoTemplate, Collection<VariantRunData> runs, boolean exportVariantIDs, GenotypeExportPlan plan, HashMap<Integer, Object> previousPhasingIds, FileWriter warningFileWriter, Comparable synonym) throws Exception
+    {
+        Map<String, Integer> individualPositions = plan.getIndividualPositions();
         ArrayList<Genotype> genotypes = new ArrayList<Genotype>();
         String sRefAllele = knownAlleles.isEmpty() ? null : knownAlleles.iterator().next();
 
@@ -596,22 +673,28 @@ abstract public class AbstractVariantData
         Integer knownAlleleCount = null;
         if (runs != null && !runs.isEmpty())
             for (VariantRunData run : runs) {
-                for (GenotypingSample sample : samplesToExport) {
-                    if (sRefAllele == null) {
-                        knownAlleleCount = run.getKnownAlleles().size();
-                        if (knownAlleleCount > 0)
-                            sRefAllele = run.getKnownAlleles().iterator().next();
-                    }
-    
-                    SampleGenotype sampleGenotype = run.getSampleGenotypes().get(sample.getId());
-                    if (sampleGenotype == null || !gtPassesVcfAnnotationFilters(sample.getIndividual(), sampleGenotype, individuals1, annotationFieldThresholds1, individuals2, annotationFieldThresholds2))
+                if (sRefAllele == null) {
+                    knownAlleleCount = run.getKnownAlleles().size();
+                    if (knownAlleleCount > 0)
+                        sRefAllele = run.getKnownAlleles().iterator().next();
+                }
+
+                GenotypeExportPlan.RunSamples runSamples = plan.getRunSamples(run);
+                if (runSamples == null)
+                    continue;    // none of the exported samples belongs to this run
+
+                HashMap<Integer, SampleGenotype> runGenotypes = run.getSampleGenotypes();
+                for (int i=0; i<runSamples.sampleIds.length; i++) {
+                    Integer sampleId = runSamples.sampleIds[i];
+                    SampleGenotype sampleGenotype = runGenotypes.get(sampleId);
+                    if (sampleGenotype == null || !runSamples.passesAnnotationFilters(i, sampleGenotype))
                         continue;    // run contains no data for this sample, or its annotation values are below filter thresholds
 
                     // keep track of SampleGenotype and Run so we can have access to additional info later on
-                    sampleGenotypes.put(sample.getId(), sampleGenotype);
+                    sampleGenotypes.put(sampleId, sampleGenotype);
                     runsWhereDataWasFound.add(run);
 
-                    int nIndividualIndex = individualPositions.get(sample.getIndividual());
+                    int nIndividualIndex = runSamples.individualIndexes[i];
                     if (individualGenotypes[nIndividualIndex] == null)
                         individualGenotypes[nIndividualIndex] = new HashMap<>(1);
                     LinkedHashSet<Integer> samplesWithGivenGenotype = individualGenotypes[nIndividualIndex].get(sampleGenotype.getCode());
@@ -619,13 +702,13 @@ abstract public class AbstractVariantData
                         samplesWithGivenGenotype = new LinkedHashSet<>(2);
                         individualGenotypes[nIndividualIndex].put(sampleGenotype.getCode(), samplesWithGivenGenotype);
                     }
-                    samplesWithGivenGenotype.add(sample.getId());
+                    samplesWithGivenGenotype.add(sampleId);
                 }
             }
         
         LinkedHashSet<Allele> variantAlleles = new LinkedHashSet<>(knownAlleleCount == null ? 4 : getKnownAlleles().size());
         variantAlleles.add(Allele.create(sRefAllele, true));
-        HashMap<String, List<String>> genotypeStringCache = new HashMap<>(variantAlleles.size() * 2);
+        HashMap<String, List<Allele>> genotypeAlleleCache = new HashMap<>(variantAlleles.size() * 2);   // Allele objects being immutable, individuals with the same genotype share them
 
         for (Map.Entry<String, Integer> entry : individualPositions.entrySet()) {
             int nIndividualIndex = entry.getValue();
@@ -667,24 +750,26 @@ abstract public class AbstractVariantData
             Object currentPhId = sampleGenotype.getAdditionalInfo().get(GT_FIELD_PHASED_ID);
             boolean isPhased = currentPhId != null && currentPhId.equals(previousPhasingIds.get(spId));
             String gtCode = isPhased ? (String) sampleGenotype.getAdditionalInfo().get(GT_FIELD_PHASED_GT) : mostFrequentGenotype;
-            List<String> alleles = genotypeStringCache.get(gtCode);
-            if (alleles == null) {
-                alleles = safelyGetAllelesFromGenotypeCode(gtCode, mongoTemplate);
-                genotypeStringCache.put(gtCode, alleles);
+            List<Allele> individualAlleles = genotypeAlleleCache.get(gtCode);
+            if (individualAlleles == null) {
+                List<String> alleles = plan.getAlleles(this, gtCode, mongoTemplate);
+                boolean fAllAllelesNoCall = !alleles.stream().filter(all -> !all.isEmpty()).findAny().isPresent();
+                Allele[] alleleArray = new Allele[alleles.size()];
+                for (int i=0; i<alleleArray.length; i++) {
+                    String sAllele = alleles.get(i);
+                    alleleArray[i] = Allele.create(sAllele.length() == 0 ? (fAllAllelesNoCall ? Allele.NO_CALL_STRING : "<DEL>") : sAllele, sRefAllele.equals(sAllele));
+                }
+                individualAlleles = Collections.unmodifiableList(Arrays.asList(alleleArray));
+                genotypeAlleleCache.put(gtCode, individualAlleles);
             }
 
-            ArrayList<Allele> individualAlleles = new ArrayList<>(alleles.size());
             previousPhasingIds.put(spId, currentPhId == null ? getVariantId() : currentPhId);
-            if (alleles.size() == 0)
+            if (individualAlleles.size() == 0)
                 continue;    /* skip this individual because there is no genotype for it */
-            
-            boolean fAllAllelesNoCall = !alleles.stream().filter(all -> !all.isEmpty()).findAny().isPresent();            
-            for (String sAllele : alleles) {
-                Allele allele = Allele.create(sAllele.length() == 0 ? (fAllAllelesNoCall ? Allele.NO_CALL_STRING : "<DEL>") : sAllele, sRefAllele.equals(sAllele) /* would be the same instance since wer'e using cached allele lists via genotypeStringCache */);
+
+            for (Allele allele : individualAlleles)
                 if (!allele.isNoCall())
                     variantAlleles.add(allele);
-                individualAlleles.add(allele);
-            }
 
             GenotypeBuilder gb = new GenotypeBuilder(entry.getKey(), individualAlleles);
             if (individualAlleles.size() > 0)
@@ -750,8 +835,7 @@ abstract public class AbstractVariantData
                 stop = referencePosition.getEndSite();
             else {
                 if (sRefAllele == null) {
-                    setKnownAlleles(mongoTemplate.findById(getVariantId(), VariantData.class).getKnownAlleles());
-                    mongoTemplate.save(this);
+                    plan.completeKnownAlleles(this, mongoTemplate);
                     sRefAllele = knownAlleles.iterator().next();
                 }
                 stop = start + sRefAllele.length() - 1;
@@ -782,6 +866,8 @@ abstract public class AbstractVariantData
                     vcb.attribute(attrName, run.getAdditionalInfo().get(attrName));
         }
         VariantContext vc = vcb.make();
+        if (plan.hasPendingRepairs())
+            plan.applyRepairs(mongoTemplate);
         return vc;
     }
 
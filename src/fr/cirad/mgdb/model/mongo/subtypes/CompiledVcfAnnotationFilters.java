@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongo.subtypes;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+
+/**
+ * Annotation filters of an export (e.g. minimum DP or GQ for each individual group), compiled once so that checking a genotype against them
+ * (same outcome as AbstractVariantData.gtPassesVcfAnnotationFilters) only involves bit and array lookups: group membership is stored as BitSets
+ * indexed by sample ID, and thresholds as arrays of field names and minimum values.
+ */
+public class CompiledVcfAnnotationFilters
+{
+    /** The IDs of samples whose genotypes must pass each group's thresholds (null for groups without thresholds) */
+    private final BitSet group1Samples, group2Samples;
+
+    private final String[] group1Fields, group2Fields;
+
+    private final float[] group1MinValues, group2MinValues;
+
+    /**
+     * Compiles annotation filters. Parameters are those of AbstractVariantData.gtPassesVcfAnnotationFilters, plus the exported samples.
+     *
+     * @param samplesToExport the exported samples
+     * @param individuals1 individual IDs for group 1
+     * @param annotationFieldThresholds1 the annotation field thresholds for group 1
+     * @param individuals2 individual IDs for group 2
+     * @param annotationFieldThresholds2 the annotation field thresholds for group 2
+     */
+    public CompiledVcfAnnotationFilters(Collection<GenotypingSample> samplesToExport, Collection<String> individuals1, HashMap<String, Float> annotationFieldThresholds1, Collection<String> individuals2, HashMap<String, Float> annotationFieldThresholds2) {
+        boolean fFiltering = !((annotationFieldThresholds1 == null || annotationFieldThresholds1.isEmpty()) && annotationFieldThresholds2 == null);
+        boolean fGroup1 = fFiltering && annotationFieldThresholds1 != null && !annotationFieldThresholds1.isEmpty() && individuals1 != null;
+        boolean fGroup2 = fFiltering && annotationFieldThresholds2 != null && !annotationFieldThresholds2.isEmpty() && individuals2 != null;
+
+        group1Samples = fGroup1 ? getGroupSamples(samplesToExport, individuals1) : null;
+        group2Samples = fGroup2 ? getGroupSamples(samplesToExport, individuals2) : null;
+        group1Fields = fGroup1 ? annotationFieldThresholds1.keySet().toArray(new String[annotationFieldThresholds1.size()]) : null;
+        group2Fields = fGroup2 ? annotationFieldThresholds2.keySet().toArray(new String[annotationFieldThresholds2.size()]) : null;
+        group1MinValues = fGroup1 ? getMinValues(group1Fields, annotationFieldThresholds1) : null;
+        group2MinValues = fGroup2 ? getMinValues(group2Fields, annotationFieldThresholds2) : null;
+    }
+
+    private static BitSet getGroupSamples(Collection<GenotypingSample> samplesToExport, Collection<String> individuals) {
+        Set<String> individualSet = individuals instanceof Set ? (Set<String>) individuals : new HashSet<>(individuals);
+        BitSet groupSamples = new BitSet();
+        for (GenotypingSample sample : samplesToExport)
+            if (individualSet.contains(sample.getIndividual()))
+                groupSamples.set(sample.getId());
+        return groupSamples;
+    }
+
+    private static float[] getMinValues(String[] fields, HashMap<String, Float> annotationFieldThresholds) {
+        float[] minValues = new float[fields.length];
+        for (int i=0; i<fields.length; i++)
+            minValues[i] = annotationFieldThresholds.get(fields[i]);
+        return minValues;
+    }
+
+    /**
+     * Tells whether any genotype may be filtered out.
+     *
+     * @return true, if there is at least one threshold to check
+     */
+    public boolean isActive() {
+        return group1Samples != null || group2Samples != null;
+    }
+
+    /**
+     * Tells whether a sample's genotype passes the filters that apply to it.
+     *
+     * @param sampleId the sample ID
+     * @param sampleGenotype the sample genotype
+     * @return true, if it passes (i.e. is not to be treated as missing data)
+     */
+    public boolean passes(int sampleId, SampleGenotype sampleGenotype) {
+        if (group1Samples != null && group1Samples.get(sampleId) && !passes(sampleGenotype.getAdditionalInfo(), group1Fields, group1MinValues))
+            return false;
+        return group2Samples == null || !group2Samples.get(sampleId) || passes(sampleGenotype.getAdditionalInfo(), group2Fields, group2MinValues);
+    }
+
+    private static boolean passes(Map<String, Object> additionalInfo, String[] fields, float[] minValues) {
+        for (int i=0; i<fields.length; i++) {
+            Object annotationValue = additionalInfo.get(fields[i]);
+            if (annotationValue instanceof Integer && (Integer) annotationValue < minValues[i])
+                return false;
+        }
+        return true;
+    }
+}
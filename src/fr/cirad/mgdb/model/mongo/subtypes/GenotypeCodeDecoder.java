@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongo.subtypes;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes genotype codes (allele indexes separated with '/' or '|', e.g. "0/1") into allele index arrays. Distinct codes being very few in practice,
+ * decoded arrays are cached and shared: callers must not modify them.
+ */
+public class GenotypeCodeDecoder
+{
+    /** The Constant MAX_CACHED_CODE_COUNT (beyond which codes, presumably unusual ones, are decoded each time). */
+    static final private int MAX_CACHED_CODE_COUNT = 10000;
+
+    private static final ConcurrentHashMap<String, int[]> decodedCodes = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the allele indexes a genotype code refers to.
+     *
+     * @param code the genotype code
+     * @return the allele indexes (not to be modified)
+     * @throws NumberFormatException if the code contains something else than integers and separators
+     */
+    public static int[] decode(String code) throws NumberFormatException {
+        int[] alleleIndexes = decodedCodes.get(code);
+        if (alleleIndexes == null) {
+            alleleIndexes = parse(code);
+            if (decodedCodes.size() < MAX_CACHED_CODE_COUNT)
+                decodedCodes.putIfAbsent(code, alleleIndexes);
+        }
+        return alleleIndexes;
+    }
+
+    /**
+     * Parses a code the way splitting it with "[\\|/]" and parsing each part as an Integer does (trailing empty parts are ignored, other ones are invalid).
+     */
+    private static int[] parse(String code) throws NumberFormatException {
+        int nLength = code.length();
+        while (nLength > 0 && isSeparator(code.charAt(nLength - 1)))
+            nLength--;
+        if (nLength == 0 && code.length() > 0)
+            return new int[0];    // only separators
+
+        int[] alleleIndexes = new int[4];
+        int nAlleleCount = 0, nStart = 0;
+        for (int i=0; i<=nLength; i++)
+            if (i == nLength || isSeparator(code.charAt(i))) {
+                if (nAlleleCount == alleleIndexes.length)
+                    alleleIndexes = Arrays.copyOf(alleleIndexes, nAlleleCount * 2);
+                alleleIndexes[nAlleleCount++] = parseIndex(code, nStart, i);
+                nStart = i + 1;
+            }
+        return nAlleleCount == alleleIndexes.length ? alleleIndexes : Arrays.copyOf(alleleIndexes, nAlleleCount);
+    }
+
+    private static int parseIndex(String code, int nStart, int nEnd) throws NumberFormatException {
+        if (nEnd - nStart == 0 || nEnd - nStart > 9)
+            return Integer.parseInt(code.substring(nStart, nEnd));    // let it deal with empty or very long numbers
+
+        int nIndex = 0;
+        for (int i=nStart; i<nEnd; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9')
+                return Integer.parseInt(code.substring(nStart, nEnd));    // signs, non-ASCII digits, or invalid
+            nIndex = nIndex * 10 + (c - '0');
+        }
+        return nIndex;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '/' || c == '|';
+    }
+}
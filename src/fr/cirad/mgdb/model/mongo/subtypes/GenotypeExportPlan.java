@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongo.subtypes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+
+/**
+ * Everything AbstractVariantData.toVariantContext needs to know about exported samples, computed once per export rather than for each variant:
+ * exported samples grouped by the run holding their genotypes (so that each run is only searched for its own samples), each with its output slot,
+ * and compiled annotation filters. Export handlers build one before looping over variants and pass it to each toVariantContext call.
+ * Known allele lists found incomplete while exporting are completed in memory, and only written back to the database by applyRepairs() (which
+ * toVariantContext calls before returning, other callers of getAlleles must call it themselves), so that no database write happens while looping over genotypes. Methods may be called concurrently, e.g. by tasks formatting different samples of the same variants.
+ */
+public class GenotypeExportPlan
+{
+    private static final Logger LOG = Logger.getLogger(GenotypeExportPlan.class);
+
+    /**
+     * Exported samples holding genotypes in a given run, in samplesToExport order.
+     */
+    public static class RunSamples
+    {
+        /** The sample IDs, boxed once for all lookups in run genotype maps */
+        public final Integer[] sampleIds;
+
+        /** The sample individuals */
+        public final String[] individuals;
+
+        /** The individual position (as in individualPositions) for each sample */
+        public final int[] individualIndexes;
+
+        /** The export's annotation filters (null if there are none) */
+        private final CompiledVcfAnnotationFilters annotationFilters;
+
+        private RunSamples(List<GenotypingSample> samples, CompiledVcfAnnotationFilters annotationFilters, Map<String, Integer> individualPositions) {
+            int nSampleCount = samples.size();
+            sampleIds = new Integer[nSampleCount];
+            individuals = new String[nSampleCount];
+            individualIndexes = new int[nSampleCount];
+            this.annotationFilters = annotationFilters;
+            for (int i=0; i<nSampleCount; i++) {
+                GenotypingSample sample = samples.get(i);
+                sampleIds[i] = sample.getId();
+                individuals[i] = sample.getIndividual();
+                individualIndexes[i] = individualPositions.get(sample.getIndividual());
+            }
+        }
+
+        /**
+         * Tells whether a sample's genotype passes annotation filters (same as AbstractVariantData.gtPassesVcfAnnotationFilters).
+         *
+         * @param i the sample's index in this object's arrays
+         * @param sampleGenotype the genotype
+         * @return true, if it passes
+         */
+        public boolean passesAnnotationFilters(int i, SampleGenotype sampleGenotype) {
+            return annotationFilters == null || annotationFilters.passes(sampleIds[i], sampleGenotype);
+        }
+    }
+
+    private final Map<String, Integer> individualPositions;
+
+    private final HashMap<Integer /*project*/, HashMap<String /*run*/, RunSamples>> runSamples = new HashMap<>();
+
+    /** Variants whose known alleles were completed in memory, by ID */
+    private final ConcurrentHashMap<Object, AbstractVariantData> pendingRepairs = new ConcurrentHashMap<>();
+
+    /** Complete known allele lists read from VariantData documents, by variant ID, so that each one is only read once */
+    private final ConcurrentHashMap<Object, List<String>> fetchedKnownAlleles = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new genotype export plan, to be built once per export.
+     *
+     * @param samplesToExport overall list of samples involved in the export
+     * @param individualPositions map providing the index at which each individual must appear in the export file (must not be modified while the plan is in use)
+     * @param individuals1 individual IDs for group 1
+     * @param individuals2 individual IDs for group 2
+     * @param annotationFieldThresholds1 the annotation field thresholds for group 1
+     * @param annotationFieldThresholds2 the annotation field thresholds for group 2
+     */
+    public GenotypeExportPlan(List<GenotypingSample> samplesToExport, Map<String, Integer> individualPositions, Collection<String> individuals1, Collection<String> individuals2, HashMap<String, Float> annotationFieldThresholds1, HashMap<String, Float> annotationFieldThresholds2) {
+        this.individualPositions = individualPositions;
+
+        CompiledVcfAnnotationFilters annotationFilters = new CompiledVcfAnnotationFilters(samplesToExport, individuals1, annotationFieldThresholds1, individuals2, annotationFieldThresholds2);
+        if (!annotationFilters.isActive())
+            annotationFilters = null;
+        HashMap<Integer, HashMap<String, List<GenotypingSample>>> samplesByRun = new HashMap<>();
+        for (GenotypingSample sample : samplesToExport)
+            samplesByRun.computeIfAbsent(sample.getProjectId(), p -> new HashMap<>()).computeIfAbsent(sample.getRun(), r -> new ArrayList<>()).add(sample);
+        for (Integer projectId : samplesByRun.keySet()) {
+            HashMap<String, RunSamples> projectRunSamples = new HashMap<>();
+            for (String run : samplesByRun.get(projectId).keySet())
+                projectRunSamples.put(run, new RunSamples(samplesByRun.get(projectId).get(run), annotationFilters, individualPositions));
+            runSamples.put(projectId, projectRunSamples);
+        }
+    }
+
+    /**
+     * Gets the individual positions.
+     *
+     * @return the map providing the index at which each individual must appear in the export file
+     */
+    public Map<String, Integer> getIndividualPositions() {
+        return individualPositions;
+    }
+
+    /**
+     * Gets the exported samples holding genotypes in a given run.
+     *
+     * @param run the run
+     * @return the run's exported samples (null if none)
+     */
+    public RunSamples getRunSamples(VariantRunData run) {
+        HashMap<String, RunSamples> projectRunSamples = runSamples.get(run.getId().getProjectId());
+        return projectRunSamples == null ? null : projectRunSamples.get(run.getRunName());
+    }
+
+    /**
+     * Gets the alleles corresponding to a genotype code. If the variant's known allele list lacks some, it is completed from the corresponding VariantData document
+     * (only read once per variant, see completeKnownAlleles).
+     *
+     * @param variant the variant
+     * @param code the genotype code
+     * @param mongoTemplate the MongoTemplate to use for completing the allele list if needed
+     * @return the alleles
+     * @throws NoSuchElementException if the code refers to an allele that does not exist
+     */
+    public List<String> getAlleles(AbstractVariantData variant, String code, MongoTemplate mongoTemplate) throws NoSuchElementException {
+        try {
+            return AbstractVariantData.staticGetAllelesFromGenotypeCode(variant.getKnownAlleles(), code);
+        }
+        catch (NoSuchElementException e1) {
+            synchronized (variant) {
+                completeKnownAlleles(variant, mongoTemplate);
+                try {
+                    return AbstractVariantData.staticGetAllelesFromGenotypeCode(variant.getKnownAlleles(), code);
+                }
+                catch (NoSuchElementException e2) {
+                    throw new NoSuchElementException("Variant " + variant + " - " + e2.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes a variant's known allele list from the corresponding VariantData document, which is only read once per variant. The fix is only persisted when calling applyRepairs().
+     * Synchronizes on the variant, which may be shared by concurrent tasks.
+     *
+     * @param variant the variant
+     * @param mongoTemplate the MongoTemplate
+     */
+    public void completeKnownAlleles(AbstractVariantData variant, MongoTemplate mongoTemplate) {
+        List<String> knownAlleles = fetchedKnownAlleles.computeIfAbsent(variant.getVariantId(), variantId -> {
+            Query q = new Query(Criteria.where("_id").is(variantId));
+            q.fields().include(AbstractVariantData.FIELDNAME_KNOWN_ALLELES);
+            return mongoTemplate.findOne(q, VariantData.class).getKnownAlleles();
+        });
+        synchronized (variant) {
+            if (!knownAlleles.equals(variant.getKnownAlleles()))
+                variant.setKnownAlleles(knownAlleles);
+            pendingRepairs.put(variant instanceof VariantRunData ? ((VariantRunData) variant).getId() : variant.getVariantId(), variant);
+        }
+    }
+
+    /**
+     * Tells whether some known allele lists were completed since applyRepairs() was last called.
+     *
+     * @return true, if there are repairs to apply
+     */
+    public boolean hasPendingRepairs() {
+        return !pendingRepairs.isEmpty();
+    }
+
+    /**
+     * Writes completed known allele lists back to the database. Only the allele list gets updated, since documents read for exporting may be incomplete.
+     *
+     * @param mongoTemplate the MongoTemplate
+     */
+    public void applyRepairs(MongoTemplate mongoTemplate) {
+        for (Object id : new ArrayList<>(pendingRepairs.keySet())) {
+            AbstractVariantData variant = pendingRepairs.remove(id);
+            if (variant != null)
+                try {
+                    mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(id)), new Update().set(AbstractVariantData.FIELDNAME_KNOWN_ALLELES, variant.getKnownAlleles()), variant.getClass());
+                }
+                catch (Exception e) {
+                    LOG.warn("Unable to fix known alleles for variant " + id, e);
+                }
+        }
+    }
+}
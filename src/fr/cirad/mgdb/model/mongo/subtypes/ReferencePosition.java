@@ -34,6 +34,15 @@ public class ReferencePosition
 	/** The Constant FIELDNAME_END_SITE. */
 	public final static String FIELDNAME_END_SITE = "es";
 
+	/** The Constant FIELDNAME_BUCKET. */
+	public final static String FIELDNAME_BUCKET = "bk";
+
+	/** The Constant FIELDNAME_SEQUENCE_ORDINAL. */
+	public final static String FIELDNAME_SEQUENCE_ORDINAL = "so";
+
+	/** The Constant BUCKET_SIZE: width (in bp) of the windows positions are grouped into */
+	public final static long BUCKET_SIZE = 1000000;
+
 	/** The sequence. */
 	@BsonProperty(FIELDNAME_SEQUENCE)
 	@Field(FIELDNAME_SEQUENCE)
@@ -48,6 +57,16 @@ public class ReferencePosition
 	@BsonProperty(FIELDNAME_END_SITE)
 	@Field(FIELDNAME_END_SITE)
 	private Long endSite = null;
+
+	/** The position bucket, i.e. index of the BUCKET_SIZE-wide window containing the start site (only stored when importing with position buckets enabled). */
+	@BsonProperty(FIELDNAME_BUCKET)
+	@Field(FIELDNAME_BUCKET)
+	private Integer bucket = null;
+
+	/** The sequence ordinal, i.e. the sequence's rank when sorting the module's sequence names alphanumerically (see MgdbDao.migrateToSequenceOrdinals), so that positions may be sorted without a numeric collation. */
+	@BsonProperty(FIELDNAME_SEQUENCE_ORDINAL)
+	@Field(FIELDNAME_SEQUENCE_ORDINAL)
+	private Integer sequenceOrdinal = null;
 	
 	/**
 	 * Instantiates a new reference position.
@@ -135,6 +154,52 @@ public class ReferencePosition
 		this.endSite = endSite;
 	}
 	
+	/**
+	 * Gets the position bucket.
+	 *
+	 * @return the position bucket, null if it was not stored
+	 */
+	public Integer getBucket() {
+		return bucket;
+	}
+
+	/**
+	 * Sets the position bucket.
+	 *
+	 * @param bucket the new position bucket
+	 */
+	public void setBucket(Integer bucket) {
+		this.bucket = bucket;
+	}
+
+	/**
+	 * Gets the sequence ordinal.
+	 *
+	 * @return the sequence ordinal, null if it was not stored
+	 */
+	public Integer getSequenceOrdinal() {
+		return sequenceOrdinal;
+	}
+
+	/**
+	 * Sets the sequence ordinal.
+	 *
+	 * @param sequenceOrdinal the new sequence ordinal
+	 */
+	public void setSequenceOrdinal(Integer sequenceOrdinal) {
+		this.sequenceOrdinal = sequenceOrdinal;
+	}
+
+	/**
+	 * Computes the position bucket for a given position.
+	 *
+	 * @param position the position
+	 * @return the index of the BUCKET_SIZE-wide window containing the position
+	 */
+	public static int getBucket(long position) {
+		return (int) (position / BUCKET_SIZE);
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#equals(java.lang.Object)
 	 */
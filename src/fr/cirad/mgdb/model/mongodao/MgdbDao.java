@@ -21,6 +21,7 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -49,6 +50,7 @@ import com.mongodb.MongoCommandException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.result.DeleteResult;
 
 import fr.cirad.mgdb.exporting.IExportHandler;
@@ -60,12 +62,14 @@ import fr.cirad.mgdb.model.mongo.maintypes.DBVCFHeader.VcfHeaderId;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingProject;
 import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
 import fr.cirad.mgdb.model.mongo.maintypes.Individual;
+import fr.cirad.mgdb.model.mongo.maintypes.Sequence;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
 import fr.cirad.mgdb.model.mongo.maintypes.CustomIndividualMetadata.CustomIndividualMetadataId;
 import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
 import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+import fr.cirad.tools.AlphaNumericComparator;
 import fr.cirad.tools.mongo.MongoTemplateManager;
 import fr.cirad.tools.security.base.AbstractTokenManager;
 import htsjdk.variant.vcf.VCFConstants;
@@ -91,6 +95,11 @@ public class MgdbDao {
      */
     static final public String COLLECTION_NAME_TAGGED_VARIANT_IDS = "taggedVariants";
 
+    /**
+     * The Constant COLLECTION_NAME_SEQUENCE_ORDINALS (see getSequenceOrdinals).
+     */
+    static final public String COLLECTION_NAME_SEQUENCE_ORDINALS = "sequenceOrdinals";
+
     /**
      * The Constant FIELD_NAME_CACHED_COUNT_VALUE.
      */
@@ -132,6 +141,9 @@ public class MgdbDao {
 
         // make sure positions are indexed with correct collation etc...
         ensurePositionIndexes(mongoTemplate, Arrays.asList(mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)), mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class))));
+        updateSequenceOrdinals(mongoTemplate);
+        if (MongoTemplateManager.doesDatabaseContainLeanRuns(mongoTemplate))
+            dropSequenceOrdinalIndexes(runColl, "lean runs carry no position");   // such an index would make position-sorted reads on runs miss lean ones
         
         MongoCollection<Document> variantColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class));
         if (!variantColl.find(new BasicDBObject()).projection(new BasicDBObject("_id", 1)).limit(1).cursor().hasNext())
@@ -216,6 +228,11 @@ public class MgdbDao {
         runColl.createIndex(new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, 1));
         LOG.debug("Creating index on field _id." + VariantRunDataId.FIELDNAME_PROJECT_ID + " of collection " + runColl.getNamespace());
         runColl.createIndex(new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, 1));
+        ensureNumericKeyIndexes(variantColl, runColl);
+        if (MongoTemplateManager.doesDatabaseContainLeanRuns(mongoTemplate))
+            dropPositionBucketIndexes(runColl, "lean runs carry no position");   // such an index would make region queries on runs miss lean ones
+        else
+            ensurePositionBucketIndexes(runColl);
 //		LOG.debug("Creating index on fields _id." + VariantRunDataId.FIELDNAME_VARIANT_ID + ", _id." + VariantRunDataId.FIELDNAME_PROJECT_ID + " of collection " + runColl.getName());
 //		BasicDBObject runCollIndexKeys = new BasicDBObject("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, 1);
 //		runCollIndexKeys.put("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, 1);
@@ -227,6 +244,370 @@ public class MgdbDao {
         return result;
     }
 
+    /**
+     * Indexes numeric variant keys if they were allocated for all runs (the index's presence on the run collection is what tells exports they may rely on those keys).
+     * Drops that index if some runs lack such keys, e.g. because they were imported with numeric key allocation disabled
+     *
+     * @param variantColl the variant collection
+     * @param runColl the variantRunData collection
+     */
+    public static void ensureNumericKeyIndexes(MongoCollection<Document> variantColl, MongoCollection<Document> runColl) {
+        BasicDBObject nkIndexKeys = new BasicDBObject(VariantData.FIELDNAME_NUMERIC_KEY, 1);
+        if (!runColl.find(new BasicDBObject(VariantData.FIELDNAME_NUMERIC_KEY, new BasicDBObject("$exists", true))).projection(new BasicDBObject("_id", 1)).limit(1).cursor().hasNext())
+            return;    // numeric keys are not used in this database
+
+        boolean fFoundRunNumericKeyIndex = hasIndex(runColl, VariantData.FIELDNAME_NUMERIC_KEY);
+        if (runColl.find(new BasicDBObject(VariantData.FIELDNAME_NUMERIC_KEY, null)).projection(new BasicDBObject("_id", 1)).limit(1).cursor().hasNext()) {
+            LOG.warn("Some runs have no numeric variant key in " + runColl.getNamespace() + ": those keys will not be used");
+            if (fFoundRunNumericKeyIndex)
+                runColl.dropIndex(nkIndexKeys);
+            return;
+        }
+
+        LOG.debug("Creating index on field " + VariantData.FIELDNAME_NUMERIC_KEY + " of collections " + variantColl.getNamespace() + " and " + runColl.getNamespace());
+        variantColl.createIndex(nkIndexKeys, new IndexOptions().unique(true).sparse(true));
+        if (!fFoundRunNumericKeyIndex)
+            runColl.createIndex(nkIndexKeys);
+    }
+
+    /**
+     * Tells whether numeric variant keys are indexed in the passed collection
+     *
+     * @param coll the collection
+     * @return true if such an index exists
+     */
+    public static boolean hasNumericKeyIndex(MongoCollection<Document> coll) {
+        return hasIndex(coll, VariantData.FIELDNAME_NUMERIC_KEY);
+    }
+
+    /**
+     * Indexes position buckets on runs if all of them have one (the index's presence is what tells exports they may rely on those buckets).
+     * Drops that index if some runs lack such a field, e.g. because they were imported with position buckets disabled
+     *
+     * @param runColl the variantRunData collection
+     */
+    public static void ensurePositionBucketIndexes(MongoCollection<Document> runColl) {
+        String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".";
+        BasicDBObject bucketIndexKeys = getPositionBucketIndexKeys();
+        if (!runColl.find(new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_BUCKET, new BasicDBObject("$exists", true))).projection(new BasicDBObject("_id", 1)).limit(1).cursor().hasNext())
+            return;    // position buckets are not used in this database
+
+        boolean fFoundBucketIndex = hasPositionBucketIndex(runColl);
+        if (runColl.find(new BasicDBObject(VariantData.FIELDNAME_REFERENCE_POSITION, new BasicDBObject("$exists", true)).append(rpPath + ReferencePosition.FIELDNAME_BUCKET, null)).projection(new BasicDBObject("_id", 1)).limit(1).cursor().hasNext()) {
+            LOG.warn("Some positioned runs have no position bucket in " + runColl.getNamespace() + ": buckets will not be used");
+            dropPositionBucketIndexes(runColl, "some positioned runs have no position bucket");
+            return;
+        }
+
+        if (!fFoundBucketIndex) {
+            LOG.debug("Creating index " + bucketIndexKeys + " on collection " + runColl.getNamespace());
+            runColl.createIndex(bucketIndexKeys);
+        }
+    }
+
+    /**
+     * Tells whether position buckets are indexed in the passed collection
+     *
+     * @param coll the collection
+     * @return true if such an index exists
+     */
+    public static boolean hasPositionBucketIndex(MongoCollection<Document> coll) {
+        return hasIndex(coll, getPositionBucketIndexKeys().keySet().toArray(new String[0]));
+    }
+
+    /**
+     * Drops the passed collection's position bucket index if it exists
+     *
+     * @param coll the collection
+     * @param sReason why the index is being dropped (for logging)
+     */
+    public static void dropPositionBucketIndexes(MongoCollection<Document> coll, String sReason) {
+        if (hasPositionBucketIndex(coll)) {
+            LOG.info("Dropping index " + getPositionBucketIndexKeys() + " on " + coll.getNamespace() + " because " + sReason);
+            coll.dropIndex(getPositionBucketIndexKeys());
+        }
+    }
+
+    private static BasicDBObject getPositionBucketIndexKeys() {
+        String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".";
+        return new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, 1).append(rpPath + ReferencePosition.FIELDNAME_BUCKET, 1);
+    }
+
+    private static boolean hasIndex(MongoCollection<Document> coll, String... indexedFields) {
+        MongoCursor<Document> indexCursor = coll.listIndexes().cursor();
+        while (indexCursor.hasNext())
+            if (Arrays.equals(((Document) indexCursor.next().get("key")).keySet().toArray(), indexedFields))
+                return true;
+        return false;
+    }
+
+    /**
+     * Builds a filter on position buckets equivalent to (but broader than) the start site bounds found in the passed filters, so that an index on {sequence, bucket} may be used to narrow down region queries
+     *
+     * @param filters the filters (as found in a $match stage's $and list)
+     * @return the bucket filter, or null if no start site bound was found
+     */
+    public static BasicDBObject buildPositionBucketFilter(Collection<?> filters) {
+        String ssPath = VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_START_SITE;
+        Long minPos = null, maxPos = null;
+        for (Object filter : filters) {
+            Object ssFilter = ((Map<String, Object>) filter).get(ssPath);
+            if (!(ssFilter instanceof Map))
+                continue;
+            for (Map.Entry<String, Object> bound : ((Map<String, Object>) ssFilter).entrySet()) {
+                if (!(bound.getValue() instanceof Number))
+                    continue;
+                long pos = ((Number) bound.getValue()).longValue();
+                if ("$gte".equals(bound.getKey()) || "$gt".equals(bound.getKey()))
+                    minPos = minPos == null ? pos : Math.max(minPos, pos);
+                else if ("$lte".equals(bound.getKey()) || "$lt".equals(bound.getKey()))
+                    maxPos = maxPos == null ? pos : Math.min(maxPos, pos);
+            }
+        }
+        if (minPos == null && maxPos == null)
+            return null;
+
+        BasicDBObject bucketBounds = new BasicDBObject();
+        if (minPos != null)
+            bucketBounds.append("$gte", ReferencePosition.getBucket(minPos));
+        if (maxPos != null)
+            bucketBounds.append("$lte", ReferencePosition.getBucket(maxPos));
+        return new BasicDBObject(VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_BUCKET, bucketBounds);
+    }
+
+    /**
+     * Gets the ordinals allocated to the module's sequences
+     *
+     * @param mongoTemplate the mongo template
+     * @return the ordinals by sequence name (empty if the module does not use sequence ordinals, see migrateToSequenceOrdinals)
+     */
+    public static Map<String, Integer> getSequenceOrdinals(MongoTemplate mongoTemplate) {
+        Map<String, Integer> result = new HashMap<>();
+        MongoCursor<Document> ordinalCursor = mongoTemplate.getCollection(COLLECTION_NAME_SEQUENCE_ORDINALS).find().cursor();
+        while (ordinalCursor.hasNext()) {
+            Document ordinalDoc = ordinalCursor.next();
+            result.put(ordinalDoc.getString("_id"), ((Number) ordinalDoc.get(ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL)).intValue());
+        }
+        return result;
+    }
+
+    /**
+     * Stores sequence ordinals
+     *
+     * @param mongoTemplate the mongo template
+     * @param ordinals the ordinals by sequence name
+     */
+    public static void saveSequenceOrdinals(MongoTemplate mongoTemplate, Map<String, Integer> ordinals) {
+        MongoCollection<Document> ordinalColl = mongoTemplate.getCollection(COLLECTION_NAME_SEQUENCE_ORDINALS);
+        for (Map.Entry<String, Integer> ordinal : ordinals.entrySet())
+            ordinalColl.updateOne(new BasicDBObject("_id", ordinal.getKey()), new BasicDBObject("$set", new BasicDBObject(ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, ordinal.getValue())), new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Makes sure each of the passed sequences has an ordinal. Ordinals follow the alphanumeric order of the module's sequence names, so that sorting positions on
+     * {ordinal, start site} is equivalent to sorting them on {sequence, start site} with a numeric collation. When new sequences need to fit between existing ones,
+     * existing ordinals get shifted: positions already carrying them are updated, and ordinal indexes dropped until they get created again.
+     *
+     * @param mongoTemplate the mongo template
+     * @param sequences the sequence names
+     * @return all of the module's ordinals by sequence name
+     */
+    private static synchronized Map<String, Integer> ensureSequenceOrdinals(MongoTemplate mongoTemplate, Collection<String> sequences) {
+        Map<String, Integer> ordinals = getSequenceOrdinals(mongoTemplate);
+        if (ordinals.keySet().containsAll(sequences))
+            return ordinals;
+
+        TreeSet<String> sortedSequences = new TreeSet<>(new AlphaNumericComparator<String>().thenComparing(Comparator.naturalOrder()));
+        sortedSequences.addAll(ordinals.keySet());
+        sortedSequences.addAll(sequences);
+        Map<String, Integer> newOrdinals = new HashMap<>(), modifiedOrdinals = new HashMap<>();
+        for (String sequence : sortedSequences) {
+            Integer ordinal = newOrdinals.size();
+            newOrdinals.put(sequence, ordinal);
+            if (!ordinal.equals(ordinals.get(sequence)))
+                modifiedOrdinals.put(sequence, ordinal);
+        }
+
+        List<MongoCollection<Document>> varColls = Arrays.asList(mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)), mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class)));
+        String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".";
+        if (ordinals.keySet().stream().anyMatch(sequence -> modifiedOrdinals.containsKey(sequence)))
+            for (MongoCollection<Document> varColl : varColls)
+                dropSequenceOrdinalIndexes(varColl, "ordinals are being shifted");
+        for (String sequence : ordinals.keySet()) {
+            Integer newOrdinal = modifiedOrdinals.get(sequence);
+            if (newOrdinal == null)
+                continue;
+            for (MongoCollection<Document> varColl : varColls) {
+                varColl.updateMany(new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, sequence).append(rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, new BasicDBObject("$exists", true)), new BasicDBObject("$set", new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, newOrdinal)));
+            }
+        }
+        saveSequenceOrdinals(mongoTemplate, modifiedOrdinals);	// saved last so that an interrupted shift gets applied again next time
+        return newOrdinals;
+    }
+
+    /**
+     * Sets already allocated sequence ordinals on the passed positions. Positions on sequences that have none yet are left without one: ordinals
+     * only get allocated (and possibly shifted) once imports are over, by updateSequenceOrdinals, so that no documents need updating meanwhile
+     *
+     * @param knownOrdinals the module's ordinals (see getSequenceOrdinals, loaded once by the caller)
+     * @param positions the positions
+     * @return true if all positions on a sequence got an ordinal, or if the module does not use ordinals (otherwise ordinal indexes must be dropped, see dropSequenceOrdinalIndexes)
+     */
+    public static boolean assignSequenceOrdinals(Map<String, Integer> knownOrdinals, Collection<ReferencePosition> positions) {
+        if (knownOrdinals.isEmpty())
+            return true;    // see migrateToSequenceOrdinals
+
+        boolean fAllAssigned = true;
+        for (ReferencePosition rp : positions)
+            if (rp != null && rp.getSequence() != null) {
+                Integer ordinal = knownOrdinals.get(rp.getSequence());
+                rp.setSequenceOrdinal(ordinal);
+                if (ordinal == null)
+                    fAllAssigned = false;
+            }
+        return fAllAssigned;
+    }
+
+    /**
+     * Makes a module use sequence ordinals: allocates one to each sequence, sets them on all positioned documents of the variant and (unless lean) run
+     * collections, and indexes them. This updates every positioned document, so it is a one-off maintenance step rather than something done
+     * when preparing for searches. Once it has been run, imports keep ordinals up to date (see updateSequenceOrdinals).
+     *
+     * @param mongoTemplate the mongo template
+     */
+    public static void migrateToSequenceOrdinals(MongoTemplate mongoTemplate) {
+        String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".", soPath = rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL;
+        List<MongoCollection<Document>> varColls = getSequenceOrdinalCollections(mongoTemplate);
+        TreeSet<String> sequences = new TreeSet<>();
+        for (MongoCollection<Document> coll : varColls)
+            coll.distinct(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, String.class).into(sequences);
+        Map<String, Integer> ordinals = ensureSequenceOrdinals(mongoTemplate, sequences);
+        for (MongoCollection<Document> coll : varColls) {
+            long nModifiedCount = 0, before = System.currentTimeMillis();
+            for (String sequence : sequences)
+                nModifiedCount += coll.updateMany(new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, sequence).append(soPath, new BasicDBObject("$ne", ordinals.get(sequence))), new BasicDBObject("$set", new BasicDBObject(soPath, ordinals.get(sequence)))).getModifiedCount();
+            LOG.info("Sequence ordinals set on " + nModifiedCount + " documents of " + coll.getNamespace() + " in " + (System.currentTimeMillis() - before) / 1000 + "s");
+            ensureSequenceOrdinalIndexes(coll);
+        }
+    }
+
+    /**
+     * Allocates ordinals to sequences that were first imported since the last call, sets them on documents located on those sequences (other documents
+     * got theirs when imported), and indexes ordinals again if imports dropped those indexes. Does nothing for modules that do not use sequence ordinals.
+     * Only meant to be called once imports are over, since shifting existing ordinals may update many documents.
+     *
+     * @param mongoTemplate the mongo template
+     */
+    public static void updateSequenceOrdinals(MongoTemplate mongoTemplate) {
+        if (getSequenceOrdinals(mongoTemplate).isEmpty())
+            return;    // see migrateToSequenceOrdinals
+
+        String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".", soPath = rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL;
+        List<MongoCollection<Document>> varColls = getSequenceOrdinalCollections(mongoTemplate);
+        TreeSet<String> sequences = new TreeSet<>();
+        for (MongoCollection<Document> coll : varColls)
+            coll.distinct(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, String.class).into(sequences);
+        Set<String> newSequences = new HashSet<>(sequences);
+        newSequences.removeAll(getSequenceOrdinals(mongoTemplate).keySet());
+        Map<String, Integer> ordinals = ensureSequenceOrdinals(mongoTemplate, sequences);
+        for (MongoCollection<Document> coll : varColls) {
+            for (String sequence : newSequences)
+                coll.updateMany(new BasicDBObject(rpPath + ReferencePosition.FIELDNAME_SEQUENCE, sequence).append(soPath, null), new BasicDBObject("$set", new BasicDBObject(soPath, ordinals.get(sequence))));
+            createSequenceOrdinalIndexes(coll);
+        }
+    }
+
+    /**
+     * @return the collections whose positions carry sequence ordinals: VariantData, and VariantRunData unless runs are lean (they then hold no position)
+     */
+    private static List<MongoCollection<Document>> getSequenceOrdinalCollections(MongoTemplate mongoTemplate) {
+        List<MongoCollection<Document>> varColls = new ArrayList<>();
+        varColls.add(mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)));
+        if (!MongoTemplateManager.doesDatabaseContainLeanRuns(mongoTemplate))
+            varColls.add(mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class)));
+        return varColls;
+    }
+
+    /**
+     * Indexes {sequence ordinal, start site, _id} if all positioned documents carry an ordinal (the index's presence is what tells exports they may sort on ordinals rather than on sequence names with a numeric collation,
+     * and _id makes it suitable for keyset pagination, see PositionKey). Drops that index if some of them lack one, e.g. because they were copied from documents imported before ordinals existed
+     *
+     * @param coll the collection
+     */
+    public static void ensureSequenceOrdinalIndexes(MongoCollection<Document> coll) {
+        String soPath = VariantData.FIELDNAME_REFERENCE_POSITION + "." + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL;
+        if (!coll.find(new BasicDBObject(soPath, new BasicDBObject("$exists", true))).projection(new BasicDBObject("_id", 1)).limit(1).cursor().hasNext())
+            return;    // sequence ordinals are not used in this collection
+
+        if (coll.find(new BasicDBObject(VariantData.FIELDNAME_REFERENCE_POSITION, new BasicDBObject("$exists", true)).append(soPath, null)).projection(new BasicDBObject("_id", 1)).limit(1).cursor().hasNext()) {
+            LOG.warn("Some positioned documents have no sequence ordinal in " + coll.getNamespace() + ": ordinals will not be used");
+            dropSequenceOrdinalIndexes(coll, "some positioned documents have no sequence ordinal");
+            return;
+        }
+        createSequenceOrdinalIndexes(coll);
+    }
+
+    /**
+     * Creates the sequence ordinal index if missing, replacing the former {sequence ordinal, start site} one
+     *
+     * @param coll the collection, all positioned documents of which are expected to carry an ordinal
+     */
+    private static void createSequenceOrdinalIndexes(MongoCollection<Document> coll) {
+        BasicDBObject ordinalIndexKeys = new BasicDBObject(PositionKey.getIndexKeys()), formerOrdinalIndexKeys = new BasicDBObject(getFormerSequenceOrdinalIndexKeys());
+        if (hasIndex(coll, formerOrdinalIndexKeys.keySet().toArray(new String[0]))) {
+            LOG.debug("Replacing index " + formerOrdinalIndexKeys + " with " + ordinalIndexKeys + " on collection " + coll.getNamespace());
+            coll.createIndex(ordinalIndexKeys);
+            coll.dropIndex(formerOrdinalIndexKeys);
+        }
+        else if (!hasSequenceOrdinalIndex(coll)) {
+            LOG.debug("Creating index " + ordinalIndexKeys + " on collection " + coll.getNamespace());
+            coll.createIndex(ordinalIndexKeys);
+        }
+    }
+
+    /**
+     * Drops the passed collection's sequence ordinal index, as well as the former {sequence ordinal, start site} one, if they exist
+     *
+     * @param coll the collection
+     * @param sReason why indexes are being dropped (for logging)
+     */
+    public static void dropSequenceOrdinalIndexes(MongoCollection<Document> coll, String sReason) {
+        for (Document indexKeys : Arrays.asList(PositionKey.getIndexKeys(), getFormerSequenceOrdinalIndexKeys()))
+            if (hasIndex(coll, indexKeys.keySet().toArray(new String[0]))) {
+                LOG.info("Dropping index " + indexKeys + " on " + coll.getNamespace() + " because " + sReason);
+                coll.dropIndex(indexKeys);
+            }
+    }
+
+    /**
+     * Drops sequence ordinal indexes from the module's variant and run collections, so that exports stop relying on ordinals (e.g. while positions without one are being imported)
+     *
+     * @param mongoTemplate the mongo template
+     * @param sReason why indexes are being dropped (for logging)
+     */
+    public static void dropSequenceOrdinalIndexes(MongoTemplate mongoTemplate, String sReason) {
+        for (Class varClass : Arrays.asList(VariantData.class, VariantRunData.class))
+            dropSequenceOrdinalIndexes(mongoTemplate.getCollection(mongoTemplate.getCollectionName(varClass)), sReason);
+    }
+
+    /**
+     * @return the keys of the sequence ordinal index created before it included _id
+     */
+    private static Document getFormerSequenceOrdinalIndexKeys() {
+        String rpPath = VariantData.FIELDNAME_REFERENCE_POSITION + ".";
+        return new Document(rpPath + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, 1).append(rpPath + ReferencePosition.FIELDNAME_START_SITE, 1);
+    }
+
+    /**
+     * Tells whether sequence ordinals are indexed in the passed collection, i.e. whether positions may be sorted on them
+     *
+     * @param coll the collection
+     * @return true if such an index exists
+     */
+    public static boolean hasSequenceOrdinalIndex(MongoCollection<Document> coll) {
+        return hasIndex(coll, PositionKey.getIndexKeys().keySet().toArray(new String[0]));
+    }
+
     /**
      * Ensures position indexes are correct in passed collections. Supports
      * variants, variantRunData and temporary collections Removes incorrect
@@ -246,6 +627,8 @@ public class MgdbDao {
             if (!fIsTmpColl && coll.estimatedDocumentCount() == 0) {
                 continue;	// database seems empty: indexes will be created after imports (faster this way) 
             }
+            if (fIsTmpColl)
+                ensureSequenceOrdinalIndexes(coll);	// main collections get theirs via updateSequenceOrdinals
             boolean fFoundCoumpoundIndex = false, fFoundCorrectCoumpoundIndex = false, fFoundStartSiteIndex = false;
             MongoCursor<Document> indexCursor = coll.listIndexes().cursor();
             while (indexCursor.hasNext()) {
@@ -327,24 +710,20 @@ public class MgdbDao {
      *
      * @param mongoTemplate the mongo template
      * @param variantFieldsToReturn the variant fields to return
-     * @param projectIdToReturnedRunFieldListMap the project id to returned run
-     * field list map
+     * @param projectIdToRunProjectionMap the run projections by project id (see getRunProjections)
      * @param variantIdListToRestrictTo the variant id list to restrict to
      * @param sort the sort
      * @return the sample genotypes
      * @throws Exception the exception
      */
-    private static LinkedHashMap<VariantData, Collection<VariantRunData>> getSampleGenotypes(MongoTemplate mongoTemplate, ArrayList<String> variantFieldsToReturn, HashMap<Integer, ArrayList<String>> projectIdToReturnedRunFieldListMap, List<Object> variantIdListToRestrictTo, Sort sort) throws Exception {
+    private static LinkedHashMap<VariantData, Collection<VariantRunData>> getSampleGenotypes(MongoTemplate mongoTemplate, ArrayList<String> variantFieldsToReturn, HashMap<Integer, Document> projectIdToRunProjectionMap, List<Object> variantIdListToRestrictTo, Sort sort) throws Exception {
         Query variantQuery = new Query();
         if (sort != null) {
             variantQuery.with(sort);
         }
 
-        Criteria runQueryVariantCriteria = null;
-
         if (variantIdListToRestrictTo != null && variantIdListToRestrictTo.size() > 0) {
             variantQuery.addCriteria(new Criteria().where("_id").in(variantIdListToRestrictTo));
-            runQueryVariantCriteria = new Criteria().where("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID).in(variantIdListToRestrictTo);
         }
         variantQuery.fields().include("_id");
         for (String returnedField : variantFieldsToReturn) {
@@ -380,22 +759,7 @@ public class MgdbDao {
             result.put(variantIdToVariantMap.get(variantId.toString()), new ArrayDeque<VariantRunData>());
         }
 
-        for (int projectId : projectIdToReturnedRunFieldListMap.keySet()) {
-            Query runQuery = new Query(Criteria.where("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID).is(projectId));
-            if (runQueryVariantCriteria != null) {
-                runQuery.addCriteria(runQueryVariantCriteria);
-            }
-
-            runQuery.fields().include("_id");
-            for (String returnedField : projectIdToReturnedRunFieldListMap.get(projectId)) {
-                runQuery.fields().include(returnedField);
-            }
-
-            List<VariantRunData> runs = mongoTemplate.find(runQuery, VariantRunData.class);
-            for (VariantRunData run : runs) {
-                result.get(variantIdToVariantMap.get(run.getId().getVariantId())).add(run);
-            }
-        }
+        addRuns(mongoTemplate, result, variantIdToVariantMap, projectIdToRunProjectionMap, new Document("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, new Document("$in", variantIdListToRestrictTo)));
 
         if (result.size() != variantIdListToRestrictTo.size()) {
             throw new Exception("Bug: we should be returning " + variantIdListToRestrictTo.size() + " results but we only have " + result.size());
@@ -423,23 +787,108 @@ public class MgdbDao {
             variantFieldsToReturn.add(VariantData.FIELDNAME_TYPE);
         }
 
-        HashMap<Integer /*project id*/, ArrayList<String>> projectIdToReturnedRunFieldListMap = new HashMap<Integer, ArrayList<String>>();
-        for (GenotypingSample sample : samples) {
-            ArrayList<String> returnedFields = projectIdToReturnedRunFieldListMap.get(sample.getProjectId());
-            if (returnedFields == null) {
-                returnedFields = new ArrayList<String>();
-                returnedFields.add("_class");
-                returnedFields.add(VariantRunData.SECTION_ADDITIONAL_INFO);
-                projectIdToReturnedRunFieldListMap.put(sample.getProjectId(), returnedFields);
-            }
-            returnedFields.add(VariantRunData.FIELDNAME_SAMPLEGENOTYPES + "." + sample.getId());
+        LinkedHashMap<VariantData, Collection<VariantRunData>> result = getSampleGenotypes(mongoTemplate, variantFieldsToReturn, getRunProjections(samples), variantIdListToRestrictTo, sort);
+
+        return result;
+    }
+
+    /**
+     * Tells whether variants matching a filter may be paginated by position with getSampleGenotypes(MongoTemplate, Collection, Document, PositionKey, int, boolean).
+     *
+     * @param mongoTemplate the mongo template
+     * @param variantFilter the variant filter
+     * @return true if the filter is purely positional and sequence ordinals are indexed in the variant collection
+     */
+    public static boolean canPaginateByPosition(MongoTemplate mongoTemplate, Document variantFilter) {
+        return PositionKey.isPurelyPositional(variantFilter) && hasSequenceOrdinalIndex(mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)));
+    }
+
+    /**
+     * Gets the sample genotypes for a page of variants matching a purely positional filter, sorted by {sequence ordinal, start site, ID}. Pages are
+     * chained by passing the last returned variant's key (see PositionKey): no list of variant IDs needs to be built, and no page requires skipping previous ones.
+     * Runs are fetched by position range when the run collection has the sequence ordinal index, and by variant ID otherwise (e.g. lean runs).
+     * See canPaginateByPosition for when this applies.
+     *
+     * @param mongoTemplate the mongo template
+     * @param samples the samples
+     * @param positionalFilter the variant filter, only involving reference position fields
+     * @param after the key of the last variant of the previous page (null to get the first page)
+     * @param nMaxVariantCount the maximum number of variants to return
+     * @param fReturnVariantTypes whether or not to return variant types
+     * @return the sample genotypes (fewer than nMaxVariantCount variants means there are no more pages)
+     * @throws Exception the exception
+     */
+    public static LinkedHashMap<VariantData, Collection<VariantRunData>> getSampleGenotypes(MongoTemplate mongoTemplate, Collection<GenotypingSample> samples, Document positionalFilter, PositionKey after, int nMaxVariantCount, boolean fReturnVariantTypes) throws Exception {
+        Document variantProjection = new Document("_id", 1).append(VariantData.FIELDNAME_KNOWN_ALLELES, 1).append(VariantData.FIELDNAME_REFERENCE_POSITION, 1);
+        if (fReturnVariantTypes) {
+            variantProjection.append(VariantData.FIELDNAME_TYPE, 1);
         }
 
-        LinkedHashMap<VariantData, Collection<VariantRunData>> result = getSampleGenotypes(mongoTemplate, variantFieldsToReturn, projectIdToReturnedRunFieldListMap, variantIdListToRestrictTo, sort);
+        Document variantFilter = positionalFilter == null || positionalFilter.isEmpty() ? null : PositionKey.withSequenceOrdinalBounds(positionalFilter, getSequenceOrdinals(mongoTemplate));
+        if (after != null) {
+            variantFilter = after.getFollowingKeysFilter(variantFilter);
+        }
+
+        LinkedHashMap<VariantData, Collection<VariantRunData>> result = new LinkedHashMap<>();
+        HashMap<String, VariantData> variantIdToVariantMap = new HashMap<>();
+        MongoCollection<Document> variantColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class));
+        for (Document doc : variantColl.find(variantFilter == null ? new Document() : variantFilter).projection(variantProjection).sort(PositionKey.getIndexKeys()).hint(PositionKey.getIndexKeys()).limit(nMaxVariantCount)) {
+            VariantData vd = mongoTemplate.getConverter().read(VariantData.class, doc);
+            variantIdToVariantMap.put(vd.getId(), vd);
+            result.put(vd, new ArrayDeque<VariantRunData>());
+        }
+        if (result.isEmpty()) {
+            return result;
+        }
 
+        // runs of the page's variants lie within the page's position range (which may also hold runs of variants from neighbouring pages, at its boundaries)
+        MongoCollection<Document> runColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class));
+        PositionKey firstKey = PositionKey.of(result.keySet().iterator().next(), null), lastKey = null;
+        for (VariantData vd : result.keySet()) {
+            lastKey = PositionKey.of(vd, null);
+        }
+        Document runVariantFilter = firstKey.isPositioned() && hasSequenceOrdinalIndex(runColl) ? PositionKey.getPositionRangeFilter(firstKey, lastKey) : new Document("_id." + VariantRunDataId.FIELDNAME_VARIANT_ID, new Document("$in", new ArrayList<>(variantIdToVariantMap.keySet())));
+        addRuns(mongoTemplate, result, variantIdToVariantMap, getRunProjections(samples), runVariantFilter);
         return result;
     }
 
+    /**
+     * Builds, for each project involved, the run projection returning the passed samples' genotypes.
+     *
+     * @param samples the samples
+     * @return the run projections by project id
+     */
+    private static HashMap<Integer, Document> getRunProjections(Collection<GenotypingSample> samples) {
+        HashMap<Integer /*project id*/, Document> projectIdToRunProjectionMap = new HashMap<>();
+        for (GenotypingSample sample : samples) {
+            projectIdToRunProjectionMap.computeIfAbsent(sample.getProjectId(), pi -> new Document("_id", 1).append("_class", 1).append(VariantRunData.SECTION_ADDITIONAL_INFO, 1)).append(VariantRunData.FIELDNAME_SAMPLEGENOTYPES + "." + sample.getId(), 1);
+        }
+        return projectIdToRunProjectionMap;
+    }
+
+    /**
+     * Adds to each variant its runs in the projects involved. Runs matching runVariantFilter but belonging to none of the variants are ignored.
+     *
+     * @param mongoTemplate the mongo template
+     * @param result the variants, with the collections to add their runs to
+     * @param variantIdToVariantMap the variants by ID
+     * @param projectIdToRunProjectionMap the run projections by project id (see getRunProjections)
+     * @param runVariantFilter the filter selecting the variants' runs
+     */
+    private static void addRuns(MongoTemplate mongoTemplate, LinkedHashMap<VariantData, Collection<VariantRunData>> result, HashMap<String, VariantData> variantIdToVariantMap, HashMap<Integer, Document> projectIdToRunProjectionMap, Document runVariantFilter) {
+        MongoCollection<Document> runColl = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantRunData.class));
+        for (int projectId : projectIdToRunProjectionMap.keySet()) {
+            Document runFilter = new Document("$and", Arrays.asList(runVariantFilter, new Document("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID, projectId)));
+            for (Document doc : runColl.find(runFilter).projection(projectIdToRunProjectionMap.get(projectId))) {
+                VariantRunData run = mongoTemplate.getConverter().read(VariantRunData.class, doc);
+                VariantData vd = variantIdToVariantMap.get(run.getId().getVariantId());
+                if (vd != null) {
+                    result.get(vd).add(run);
+                }
+            }
+        }
+    }
+
     public static Set<String> getProjectIndividuals(String sModule, int projId) throws ObjectNotFoundException {
         return getSamplesByIndividualForProject(sModule, projId, null).keySet();
     }
@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.mgdb.model.mongodao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData.VariantRunDataId;
+import fr.cirad.mgdb.model.mongo.subtypes.AbstractVariantData;
+import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+
+/**
+ * A document's key in {sequence ordinal, start site, _id} order, i.e. the order of the index created by MgdbDao.migrateToSequenceOrdinals.
+ * Used for keyset pagination: each page of a position-sorted read resumes strictly after the last key of the previous one, so that pages neither
+ * need skipping over previous ones nor matching lists of IDs. Unpositioned documents (which have no ordinal) come first, as in the index.
+ * A key may have no ID, in which case it only stands for a position: this suits runs, whose composite IDs can't be reliably compared client-side.
+ */
+public class PositionKey
+{
+    private static final String RP_PATH = AbstractVariantData.FIELDNAME_REFERENCE_POSITION + ".";
+
+    private static final String SO_PATH = RP_PATH + ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL, SS_PATH = RP_PATH + ReferencePosition.FIELDNAME_START_SITE;
+
+    private final Integer sequenceOrdinal;
+
+    private final Long startSite;
+
+    private final Object id;
+
+    /**
+     * Instantiates a new position key.
+     *
+     * @param sequenceOrdinal the sequence ordinal (null for unpositioned documents)
+     * @param startSite the start site (null for unpositioned documents)
+     * @param id the document ID (null if the key only stands for a position)
+     */
+    public PositionKey(Integer sequenceOrdinal, Long startSite, Object id) {
+        this.sequenceOrdinal = sequenceOrdinal;
+        this.startSite = sequenceOrdinal == null ? null : startSite;
+        this.id = id;
+    }
+
+    /**
+     * Gets a variant's key.
+     *
+     * @param variant the variant (its reference position must have been read along with its sequence ordinal)
+     * @param id the variant's ID, or null to only get its position
+     * @return the position key
+     */
+    public static PositionKey of(AbstractVariantData variant, Object id) {
+        ReferencePosition rp = variant.getReferencePosition();
+        return rp == null ? new PositionKey(null, null, id) : new PositionKey(rp.getSequenceOrdinal(), rp.getStartSite(), id);
+    }
+
+    /**
+     * Gets a raw document's key.
+     *
+     * @param doc the document (must contain _id, and rp.so and rp.ss if positioned)
+     * @return the position key
+     */
+    public static PositionKey of(Document doc) {
+        Document rp = (Document) doc.get(AbstractVariantData.FIELDNAME_REFERENCE_POSITION);
+        Object startSite = rp == null ? null : rp.get(ReferencePosition.FIELDNAME_START_SITE);
+        return new PositionKey(rp == null ? null : rp.getInteger(ReferencePosition.FIELDNAME_SEQUENCE_ORDINAL), startSite == null ? null : ((Number) startSite).longValue(), doc.get("_id"));
+    }
+
+    /**
+     * Gets the keys of the sequence ordinal index, which are also the sort to paginate on.
+     *
+     * @return the index keys
+     */
+    public static Document getIndexKeys() {
+        return new Document(SO_PATH, 1).append(SS_PATH, 1).append("_id", 1);
+    }
+
+    /**
+     * Tells whether this key identifies a single document.
+     *
+     * @return true, if it has an ID
+     */
+    public boolean hasId() {
+        return id != null;
+    }
+
+    /**
+     * Tells whether this key belongs to a positioned document.
+     *
+     * @return true, if it has a sequence ordinal
+     */
+    public boolean isPositioned() {
+        return sequenceOrdinal != null;
+    }
+
+    /**
+     * Tells whether both keys stand for the same position.
+     *
+     * @param other the other key
+     * @return true, if so
+     */
+    public boolean hasSamePosition(PositionKey other) {
+        return Objects.equals(sequenceOrdinal, other.sequenceOrdinal) && Objects.equals(startSite, other.startSite);
+    }
+
+    /**
+     * Builds a filter matching documents that come strictly after this key (strictly after its position if it has no ID).
+     *
+     * @return the filter
+     */
+    public Document getFollowingKeysFilter() {
+        List<Document> orList = new ArrayList<>();
+        if (sequenceOrdinal == null) {  // unpositioned documents with a greater ID, then all positioned ones
+            if (id != null)
+                orList.add(new Document(SO_PATH, null).append("_id", new Document("$gt", id)));
+            orList.add(new Document(SO_PATH, new Document("$gte", Integer.MIN_VALUE)));
+        }
+        else {
+            orList.add(new Document(SO_PATH, new Document("$gt", sequenceOrdinal)));
+            orList.add(new Document(SO_PATH, sequenceOrdinal).append(SS_PATH, new Document("$gt", startSite)));
+            if (id != null)
+                orList.add(new Document(SO_PATH, sequenceOrdinal).append(SS_PATH, startSite).append("_id", new Document("$gt", id)));
+        }
+        return orList.size() == 1 ? orList.get(0) : new Document("$or", orList);
+    }
+
+    /**
+     * Builds a filter matching documents that come strictly after this key and match another filter. The latter gets distributed over each
+     * alternative, so that the server may narrow each of them down on the index.
+     *
+     * @param filter the other filter (null for none)
+     * @return the filter
+     */
+    public Document getFollowingKeysFilter(Document filter) {
+        Document followingKeysFilter = getFollowingKeysFilter();
+        if (filter == null || filter.isEmpty())
+            return followingKeysFilter;
+        List<Document> orList = new ArrayList<>();
+        for (Document alternative : followingKeysFilter.containsKey("$or") ? followingKeysFilter.getList("$or", Document.class) : Arrays.asList(followingKeysFilter))
+            orList.add(new Document("$and", Arrays.asList(filter, alternative)));
+        return orList.size() == 1 ? orList.get(0) : new Document("$or", orList);
+    }
+
+    /**
+     * Builds a filter matching documents at this key's position.
+     *
+     * @return the filter
+     */
+    public Document getPositionFilter() {
+        return sequenceOrdinal == null ? new Document(SO_PATH, null) : new Document(SO_PATH, sequenceOrdinal).append(SS_PATH, startSite);
+    }
+
+    /**
+     * Builds a filter matching positioned documents between two keys' positions, both included.
+     *
+     * @param first the first key (must be positioned)
+     * @param last the last key (must be positioned, and not come before first)
+     * @return the filter
+     */
+    public static Document getPositionRangeFilter(PositionKey first, PositionKey last) {
+        if (first.sequenceOrdinal.equals(last.sequenceOrdinal))
+            return new Document(SO_PATH, first.sequenceOrdinal).append(SS_PATH, new Document("$gte", first.startSite).append("$lte", last.startSite));
+        return new Document("$or", Arrays.asList(
+                new Document(SO_PATH, first.sequenceOrdinal).append(SS_PATH, new Document("$gte", first.startSite)),
+                new Document(SO_PATH, new Document("$gt", first.sequenceOrdinal).append("$lt", last.sequenceOrdinal)),
+                new Document(SO_PATH, last.sequenceOrdinal).append(SS_PATH, new Document("$lte", last.startSite))));
+    }
+
+    /**
+     * Tells whether a filter only selects documents by position (reference position fields), possibly restricting runs to some projects or run names.
+     * Such a filter is answered by walking the sequence ordinal index, which makes keyset pagination as cheap as possible.
+     *
+     * @param filter the filter (an empty one qualifies)
+     * @return true, if the filter is purely positional
+     */
+    public static boolean isPurelyPositional(Map<?, ?> filter) {
+        for (Map.Entry<?, ?> entry : filter.entrySet()) {
+            if (!(entry.getKey() instanceof String))
+                return false;
+            String key = (String) entry.getKey();
+            if ("$and".equals(key) || "$or".equals(key)) {
+                if (!(entry.getValue() instanceof Collection))
+                    return false;
+                for (Object subFilter : (Collection<?>) entry.getValue())
+                    if (!(subFilter instanceof Map) || !isPurelyPositional((Map<?, ?>) subFilter))
+                        return false;
+                continue;
+            }
+            if (!key.startsWith(RP_PATH) && !key.equals("_id." + VariantRunDataId.FIELDNAME_PROJECT_ID) && !key.equals("_id." + VariantRunDataId.FIELDNAME_RUNNAME))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds sequence ordinal bounds equivalent to a filter's conditions on sequence names, so that the server may narrow it down on the sequence ordinal index.
+     *
+     * @param filter the filter (left unchanged)
+     * @param ordinals the module's sequence ordinals (see MgdbDao.getSequenceOrdinals)
+     * @return the filter with ordinal bounds, or the passed filter if it holds no condition on sequence names
+     */
+    public static Document withSequenceOrdinalBounds(Document filter, Map<String, Integer> ordinals) {
+        if (filter == null)
+            return null;
+        List<Object> filters = filter.get("$and") instanceof Collection ? new ArrayList<>((Collection<?>) filter.get("$and")) : Arrays.asList(filter);
+        String sqPath = RP_PATH + ReferencePosition.FIELDNAME_SEQUENCE;
+        List<Document> ordinalBounds = new ArrayList<>();
+        for (Object subFilter : filters) {
+            if (!(subFilter instanceof Map))
+                continue;
+            Object sqFilter = ((Map<?, ?>) subFilter).get(sqPath);
+            Collection<?> sequences = null;
+            if (sqFilter instanceof String)
+                sequences = Arrays.asList(sqFilter);
+            else if (sqFilter instanceof Map && ((Map<?, ?>) sqFilter).size() == 1) {
+                Object operand = ((Map<?, ?>) sqFilter).get("$in");
+                if (operand == null && ((Map<?, ?>) sqFilter).get("$eq") instanceof String)
+                    operand = Arrays.asList(((Map<?, ?>) sqFilter).get("$eq"));
+                if (operand instanceof Collection)
+                    sequences = (Collection<?>) operand;
+            }
+            if (sequences != null)  // sequences without an ordinal don't appear in the collection
+                ordinalBounds.add(new Document(SO_PATH, new Document("$in", sequences.stream().map(sequence -> ordinals.get(sequence)).filter(Objects::nonNull).distinct().collect(Collectors.toList()))));
+        }
+        if (ordinalBounds.isEmpty())
+            return filter;
+        List<Object> boundedFilters = new ArrayList<>(filters);
+        boundedFilters.addAll(ordinalBounds);
+        return new Document("$and", boundedFilters);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + sequenceOrdinal + ", " + startSite + ", " + id + "]";
+    }
+}
@@ -16,13 +16,15 @@
  *******************************************************************************/
 package fr.cirad.tools;
 
-import java.nio.Buffer;
-import java.nio.CharBuffer;
+import java.text.CollationKey;
 import java.text.Collator;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static java.nio.CharBuffer.wrap;
 import static java.util.Objects.requireNonNull;
 
 public class AlphaNumericComparator<T> implements Comparator<T> {
@@ -58,51 +60,149 @@ public class AlphaNumericComparator<T> implements Comparator<T> {
 
     @Override
     public int compare(T t1, T t2) {
-    	String s1 = t1.toString();
-    	String s2 = t2.toString();
-        final CharBuffer b1 = wrap(s1.toCharArray());
-        final CharBuffer b2 = wrap(s2.toCharArray());
+        final String s1 = t1.toString();
+        final String s2 = t2.toString();
+        if (s1 == s2) {
+            return 0;
+        }
 
-        while (b1.hasRemaining() && b2.hasRemaining()) {
-            moveWindow(b1);
-            moveWindow(b2);
+        // strings are walked in place, one segment (run of digits or of non-digits) at a time
+        int i1 = 0, i2 = 0;
+        while (i1 < s1.length() && i2 < s2.length()) {
+            final boolean isNumerical1 = isDigit(s1.charAt(i1)), isNumerical2 = isDigit(s2.charAt(i2));
+            final int end1 = segmentEnd(s1, i1, isNumerical1), end2 = segmentEnd(s2, i2, isNumerical2);
+            final int start1 = isNumerical1 ? trimLeadingZeros(s1, i1, end1) : i1, start2 = isNumerical2 ? trimLeadingZeros(s2, i2, end2) : i2;
 
-            final int result = compare(b1, b2);
+            final int result = isNumerical1 && isNumerical2 ? compareNumerically(s1, start1, end1, s2, start2, end2) : compareAsStrings(s1, start1, end1, s2, start2, end2);
             if (result != 0) {
                 return result;
             }
 
-            prepareForNextIteration(b1);
-            prepareForNextIteration(b2);
+            i1 = end1;
+            i2 = end2;
         }
 
         return s1.length() - s2.length();
     }
 
-    private void moveWindow(final CharBuffer buffer) {
-        int start = buffer.position();
-        int end = buffer.position();
-        final boolean isNumerical = isDigit(buffer.get(start));
-        while (end < buffer.limit() && isNumerical == isDigit(buffer.get(end))) {
-            ++end;
-            if (isNumerical && (start + 1 < buffer.limit()) && isZero(buffer.get(start)) && isDigit(buffer.get(end))) {
-                ++start; // trim leading zeros
+    /**
+     * Creates a comparator sorting strings like this one, but which decomposes each distinct string only once (see SortKey) and remembers it.
+     * Meant to be used for a limited time over a limited set of distinct values that get compared many times (e.g. sequence names when sorting an export's variants). Thread-safe.
+     *
+     * @return the memoizing comparator
+     */
+    public Comparator<String> memoizing() {
+        final Map<String, SortKey> sortKeys = new ConcurrentHashMap<>();
+        return (s1, s2) -> s1 == s2 ? 0 : getSortKey(sortKeys, s1).compareTo(getSortKey(sortKeys, s2));
+    }
+
+    private SortKey getSortKey(final Map<String, SortKey> sortKeys, final String s) {
+        final SortKey sortKey = sortKeys.get(s);
+        return sortKey != null ? sortKey : sortKeys.computeIfAbsent(s, this::sortKey);
+    }
+
+    /**
+     * Decomposes a string into the segments this comparator compares.
+     *
+     * @param s
+     *         the string
+     * @return its sort key
+     */
+    public SortKey sortKey(final String s) {
+        final List<int[]> segments = new ArrayList<>();
+        int i = 0;
+        while (i < s.length()) {
+            final boolean isNumerical = isDigit(s.charAt(i));
+            final int end = segmentEnd(s, i, isNumerical);
+            segments.add(new int[] {isNumerical ? trimLeadingZeros(s, i, end) : i, end, isNumerical ? 1 : 0});
+            i = end;
+        }
+        return new SortKey(s, segments, collator);
+    }
+
+    /**
+     * A string decomposed into the segments an AlphaNumericComparator compares, so that they can be compared repeatedly without scanning strings again.
+     * Sort keys compare like their strings would with the comparator that created them.
+     */
+    public static final class SortKey implements Comparable<SortKey> {
+
+        private final String string;
+
+        /** start (leading zeros excluded for numerical ones) and end of each segment */
+        private final int[] starts, ends;
+
+        private final boolean[] numerical;
+
+        /** the segments' collation keys (null if no collator is used) */
+        private final CollationKey[] collationKeys;
+
+        private SortKey(final String string, final List<int[]> segments, final Collator collator) {
+            this.string = string;
+            starts = new int[segments.size()];
+            ends = new int[segments.size()];
+            numerical = new boolean[segments.size()];
+            collationKeys = collator == null ? null : new CollationKey[segments.size()];
+            for (int i = 0; i < starts.length; ++i) {
+                final int[] segment = segments.get(i);
+                starts[i] = segment[0];
+                ends[i] = segment[1];
+                numerical[i] = segment[2] == 1;
+                if (collator != null) {
+                    collationKeys[i] = collator.getCollationKey(string.substring(starts[i], ends[i]));
+                }
             }
         }
 
-        ((Buffer) buffer).position(start).limit(end);
-    }
+        /**
+         * Gets the string.
+         *
+         * @return the string this key was created for
+         */
+        public String getString() {
+            return string;
+        }
 
-    private int compare(final CharBuffer b1, final CharBuffer b2) {
-        if (isNumerical(b1) && isNumerical(b2)) {
-            return compareNumerically(b1, b2);
+        @Override
+        public int compareTo(final SortKey other) {
+            if (this == other) {
+                return 0;
+            }
+
+            final int segmentCount = Math.min(starts.length, other.starts.length);
+            for (int i = 0; i < segmentCount; ++i) {
+                final int result;
+                if (numerical[i] && other.numerical[i]) {
+                    result = compareNumerically(string, starts[i], ends[i], other.string, other.starts[i], other.ends[i]);
+                } else if (collationKeys != null) {
+                    result = collationKeys[i].compareTo(other.collationKeys[i]);
+                } else {
+                    result = compareRegions(string, starts[i], ends[i], other.string, other.starts[i], other.ends[i]);
+                }
+                if (result != 0) {
+                    return result;
+                }
+            }
+
+            return string.length() - other.string.length();
         }
+    }
 
-        return compareAsStrings(b1, b2);
+    private int segmentEnd(final String s, final int start, final boolean isNumerical) {
+        int end = start + 1;
+        while (end < s.length() && isNumerical == isDigit(s.charAt(end))) {
+            ++end;
+        }
+        return end;
     }
 
-    private boolean isNumerical(final CharBuffer buffer) {
-        return isDigit(buffer.charAt(0));
+    /**
+     * @return the start of a numerical segment once its leading zeros are skipped (a zero value keeps its last digit)
+     */
+    private static int trimLeadingZeros(final String s, int start, final int end) {
+        while (start < end - 1 && isZero(s.charAt(start))) {
+            ++start;
+        }
+        return start;
     }
 
     private boolean isDigit(final char c) {
@@ -113,32 +213,36 @@ public class AlphaNumericComparator<T> implements Comparator<T> {
         return Character.isDigit(c);
     }
 
-    private int compareNumerically(final CharBuffer b1, final CharBuffer b2) {
-        final int diff = b1.length() - b2.length();
+    private static int compareNumerically(final String s1, final int start1, final int end1, final String s2, final int start2, final int end2) {
+        final int diff = (end1 - start1) - (end2 - start2);
         if (diff != 0) {
             return diff;
         }
-        for (int i = 0; i < b1.remaining() && i < b2.remaining(); ++i) {
-            final int result = Character.compare(b1.charAt(i), b2.charAt(i));
-            if (result != 0) {
-                return result;
-            }
-        }
-        return 0;
+        return compareRegions(s1, start1, end1, s2, start2, end2);
     }
 
-    private void prepareForNextIteration(final CharBuffer buffer) {
-        ((Buffer) buffer).position(buffer.limit()).limit(buffer.capacity());
+    private int compareAsStrings(final String s1, final int start1, final int end1, final String s2, final int start2, final int end2) {
+        if (collator != null) {
+            return collator.compare(s1.substring(start1, end1), s2.substring(start2, end2));
+        }
+        return compareRegions(s1, start1, end1, s2, start2, end2);
     }
 
-    private int compareAsStrings(final CharBuffer b1, final CharBuffer b2) {
-        if (collator != null) {
-            return collator.compare(b1.toString(), b2.toString());
+    /**
+     * Compares two string regions the way String.compareTo compares strings.
+     */
+    private static int compareRegions(final String s1, final int start1, final int end1, final String s2, final int start2, final int end2) {
+        final int length1 = end1 - start1, length2 = end2 - start2;
+        for (int i = 0; i < length1 && i < length2; ++i) {
+            final char c1 = s1.charAt(start1 + i), c2 = s2.charAt(start2 + i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
         }
-        return b1.toString().compareTo(b2.toString());
+        return length1 - length2;
     }
 
-    private boolean isZero(final char c) {
+    private static boolean isZero(final char c) {
         return c == '0';
     }
 
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package fr.cirad.tools.mongo;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import fr.cirad.mgdb.model.mongo.maintypes.DatabaseInformation;
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+
+/**
+ * Keeps, for each module, statistics used to size export queries (average VariantRunData document size, share of it taken by genotypes, sample counts per project and run),
+ * so that they do not need to be computed by expensive commands at the start of every export. Cached statistics are refreshed whenever the module's dbInfo
+ * lastModification (or restoreDate) changes, i.e. after each import or restore, and dropped when the module's data changes via MongoTemplateManager.
+ */
+public class ModuleStatisticsManager {
+
+    /**
+     * The Constant LOG.
+     */
+    static private final Logger LOG = Logger.getLogger(ModuleStatisticsManager.class);
+
+    /**
+     * The Constant SAMPLED_DOCUMENT_COUNT (number of randomly picked VariantRunData documents used to estimate the share of genotypes in their size).
+     */
+    static private final int SAMPLED_DOCUMENT_COUNT = 20;
+
+    /**
+     * The statistics by template (weakly referenced so that templates of removed modules may be garbage collected).
+     */
+    static private final Map<MongoTemplate, ModuleStatistics> statisticsByTemplate = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * The Class ModuleStatistics.
+     */
+    static public class ModuleStatistics {
+
+        /** The dbInfo dates these statistics were computed against. */
+        private final Date lastModification, restoreDate;
+
+        /** The average VariantRunData document size, in bytes. */
+        private final double avgRunDocumentSize;
+
+        /** The average number of bytes a document spends on anything but genotypes. */
+        private final double avgFixedBytesPerRunDocument;
+
+        /** The average number of bytes a document spends per sample of its run. */
+        private final double avgBytesPerSample;
+
+        /** The sample count. */
+        private final int sampleCount;
+
+        /** The sample counts by project. */
+        private final Map<Integer, Integer> sampleCountByProject;
+
+        /** The sample counts by project, then run. */
+        private final Map<Integer, Map<String, Integer>> sampleCountByProjectAndRun;
+
+        private ModuleStatistics(Date lastModification, Date restoreDate, double avgRunDocumentSize, double avgFixedBytesPerRunDocument, double avgBytesPerSample, Map<Integer, Map<String, Integer>> sampleCountByProjectAndRun) {
+            this.lastModification = lastModification;
+            this.restoreDate = restoreDate;
+            this.avgRunDocumentSize = avgRunDocumentSize;
+            this.avgFixedBytesPerRunDocument = avgFixedBytesPerRunDocument;
+            this.avgBytesPerSample = avgBytesPerSample;
+            this.sampleCountByProjectAndRun = sampleCountByProjectAndRun;
+
+            Map<Integer, Integer> sampleCountByProject = new HashMap<>();
+            int nSampleCount = 0;
+            for (Map.Entry<Integer, Map<String, Integer>> projectEntry : sampleCountByProjectAndRun.entrySet())
+                for (Integer nRunSampleCount : projectEntry.getValue().values()) {
+                    sampleCountByProject.merge(projectEntry.getKey(), nRunSampleCount, Integer::sum);
+                    nSampleCount += nRunSampleCount;
+                }
+            this.sampleCountByProject = Collections.unmodifiableMap(sampleCountByProject);
+            this.sampleCount = nSampleCount;
+        }
+
+        private boolean isUpToDate(DatabaseInformation dbInfo) {
+            return Objects.equals(lastModification, dbInfo == null ? null : dbInfo.getLastModification()) && Objects.equals(restoreDate, dbInfo == null ? null : dbInfo.getRestoreDate());
+        }
+
+        /**
+         * Gets the average VariantRunData document size.
+         *
+         * @return the average document size, in bytes
+         */
+        public double getAvgRunDocumentSize() {
+            return avgRunDocumentSize;
+        }
+
+        /**
+         * Gets the sample count.
+         *
+         * @return the number of samples in the module
+         */
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * Gets the sample counts by project.
+         *
+         * @return the sample counts by project
+         */
+        public Map<Integer, Integer> getSampleCountByProject() {
+            return sampleCountByProject;
+        }
+
+        /**
+         * Estimates the number of bytes an export of the given samples retrieves per variant. Each (project, run) pair involved contributes a document made of
+         * a fixed part plus the genotypes of the samples it returns: only the selected ones when at most half of the module's samples are exported (ExportManager
+         * then projects documents on them), all of the run's ones otherwise.
+         *
+         * @param samples the samples to export (null for all)
+         * @return the estimated size, in bytes
+         */
+        public double estimateRetrievedBytesPerVariant(Collection<GenotypingSample> samples) {
+            if (samples == null || samples.isEmpty() || sampleCount == 0)
+                return avgRunDocumentSize;
+
+            Map<Integer, Map<String, Integer>> selectedCountByProjectAndRun = new HashMap<>();
+            for (GenotypingSample sample : samples)
+                selectedCountByProjectAndRun.computeIfAbsent(sample.getProjectId(), pj -> new HashMap<>()).merge(sample.getRun(), 1, Integer::sum);
+
+            boolean fProjected = 100L * samples.size() / sampleCount <= 50;
+            double nBytes = 0;
+            for (Map.Entry<Integer, Map<String, Integer>> projectEntry : selectedCountByProjectAndRun.entrySet()) {
+                Map<String, Integer> runSampleCounts = sampleCountByProjectAndRun.getOrDefault(projectEntry.getKey(), Collections.emptyMap());
+                for (Map.Entry<String, Integer> runEntry : projectEntry.getValue().entrySet())
+                    nBytes += avgFixedBytesPerRunDocument + avgBytesPerSample * (fProjected ? runEntry.getValue() : runSampleCounts.getOrDefault(runEntry.getKey(), runEntry.getValue()));
+            }
+            return nBytes;
+        }
+    }
+
+    /**
+     * Gets a module's statistics, computing them if they were never computed or if the database was modified since.
+     *
+     * @param mongoTemplate the module's template
+     * @return the module statistics
+     */
+    static public ModuleStatistics get(MongoTemplate mongoTemplate) {
+        DatabaseInformation dbInfo = mongoTemplate.findOne(new Query(), DatabaseInformation.class, "dbInfo");
+        ModuleStatistics stats = statisticsByTemplate.get(mongoTemplate);
+        if (stats != null && stats.isUpToDate(dbInfo))
+            return stats;
+
+        synchronized (mongoTemplate) {  // concurrent exports starting together on a modified module only compute statistics once
+            stats = statisticsByTemplate.get(mongoTemplate);
+            if (stats == null || !stats.isUpToDate(dbInfo)) {
+                long before = System.currentTimeMillis();
+                stats = computeStatistics(mongoTemplate, dbInfo);
+                statisticsByTemplate.put(mongoTemplate, stats);
+                LOG.debug("Statistics for database " + mongoTemplate.getDb().getName() + " computed in " + (System.currentTimeMillis() - before) + "ms");
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Gets a module's statistics.
+     *
+     * @param sModule the module
+     * @return the module statistics
+     */
+    static public ModuleStatistics get(String sModule) {
+        return get(MongoTemplateManager.get(sModule));
+    }
+
+    /**
+     * Drops a module's cached statistics.
+     *
+     * @param mongoTemplate the module's template
+     */
+    static public void invalidate(MongoTemplate mongoTemplate) {
+        if (mongoTemplate != null)
+            statisticsByTemplate.remove(mongoTemplate);
+    }
+
+    static private ModuleStatistics computeStatistics(MongoTemplate mongoTemplate, DatabaseInformation dbInfo) {
+        Map<Integer, Map<String, Integer>> sampleCountByProjectAndRun = new HashMap<>();
+        String sProjectPath = "$_id." + GenotypingSample.FIELDNAME_PROJECT_ID, sRunPath = "$_id." + GenotypingSample.FIELDNAME_RUN;
+        Document groupStage = new Document("$group", new Document("_id", new Document(GenotypingSample.FIELDNAME_PROJECT_ID, "$" + GenotypingSample.FIELDNAME_PROJECT_ID).append(GenotypingSample.FIELDNAME_RUN, "$" + GenotypingSample.FIELDNAME_RUN)).append("n", new Document("$sum", 1)));
+        Document projectStage = new Document("$project", new Document(GenotypingSample.FIELDNAME_PROJECT_ID, sProjectPath).append(GenotypingSample.FIELDNAME_RUN, sRunPath).append("n", 1).append("_id", 0));
+        for (Document runCount : mongoTemplate.getCollection(mongoTemplate.getCollectionName(GenotypingSample.class)).aggregate(Arrays.asList(groupStage, projectStage)))
+            sampleCountByProjectAndRun.computeIfAbsent(runCount.getInteger(GenotypingSample.FIELDNAME_PROJECT_ID), pj -> new HashMap<>()).put(runCount.getString(GenotypingSample.FIELDNAME_RUN), runCount.getInteger("n"));
+
+        String runCollName = mongoTemplate.getCollectionName(VariantRunData.class);
+        Number avgObjSize = (Number) mongoTemplate.getDb().runCommand(new Document("collStats", runCollName)).get("avgObjSize");   // missing when the collection is empty
+
+        // genotypes' share of document size is estimated from a few randomly picked documents, relatively to the number of samples in their run (some of which may have no genotype stored)
+        int nSampledDocCount = 0;
+        long nSampledBytes = 0, nSampledGenotypeBytes = 0, nSampledRunSampleCount = 0;
+        for (RawBsonDocument doc : mongoTemplate.getDb().getCollection(runCollName, RawBsonDocument.class).aggregate(Arrays.asList(new Document("$sample", new Document("size", SAMPLED_DOCUMENT_COUNT))))) {
+            nSampledDocCount++;
+            nSampledBytes += doc.getByteBuffer().remaining();
+            BsonValue genotypes = doc.get(VariantRunData.FIELDNAME_SAMPLEGENOTYPES);
+            if (genotypes == null || !genotypes.isDocument())
+                continue;
+
+            RawBsonDocument genotypeDoc = (RawBsonDocument) genotypes;   // sub-documents of raw documents are raw too
+            nSampledGenotypeBytes += genotypeDoc.getByteBuffer().remaining();
+            BsonDocument id = doc.getDocument("_id");
+            Integer nRunSampleCount = sampleCountByProjectAndRun.getOrDefault(id.getInt32(VariantRunData.VariantRunDataId.FIELDNAME_PROJECT_ID).getValue(), Collections.emptyMap()).get(id.getString(VariantRunData.VariantRunDataId.FIELDNAME_RUNNAME).getValue());
+            nSampledRunSampleCount += nRunSampleCount != null ? nRunSampleCount : genotypeDoc.size();
+        }
+
+        double avgRunDocumentSize = avgObjSize != null ? avgObjSize.doubleValue() : (nSampledDocCount > 0 ? (double) nSampledBytes / nSampledDocCount : 0);
+        double genotypeShare = nSampledBytes == 0 ? 0 : (double) nSampledGenotypeBytes / nSampledBytes;
+        double avgFixedBytesPerRunDocument = avgRunDocumentSize * (1 - genotypeShare);
+        double avgBytesPerSample = nSampledRunSampleCount == 0 ? 0 : avgRunDocumentSize * genotypeShare * nSampledDocCount / nSampledRunSampleCount;
+        return new ModuleStatistics(dbInfo == null ? null : dbInfo.getLastModification(), dbInfo == null ? null : dbInfo.getRestoreDate(), avgRunDocumentSize, avgFixedBytesPerRunDocument, avgBytesPerSample, sampleCountByProjectAndRun);
+    }
+}
@@ -450,7 +450,7 @@ public class MongoTemplateManager implements ApplicationContextAware {
 
             if (fAlsoDropDatabase)
                 templateMap.get(key).getDb().drop();
-            templateMap.remove(key);
+            ModuleStatisticsManager.invalidate(templateMap.remove(key));
             publicDatabases.remove(key);
             hiddenDatabases.remove(key);
             return true;
@@ -730,6 +730,16 @@ public class MongoTemplateManager implements ApplicationContextAware {
     	update.set(DatabaseInformation.FIELDNAME_LAST_MODIFICATION, lastModification);
     	update.set(DatabaseInformation.FIELDNAME_RESTORE_DATE, restored ? new Date() : null);
     	template.upsert(new Query(), update, "dbInfo");
+    	ModuleStatisticsManager.invalidate(template);
+    }
+    
+    public static void setDatabaseContainsLeanRuns(MongoTemplate template) {
+    	template.upsert(new Query(), new Update().set(DatabaseInformation.FIELDNAME_LEAN_RUNS, true), "dbInfo");
+    }
+
+    public static boolean doesDatabaseContainLeanRuns(MongoTemplate template) {
+    	DatabaseInformation dbInfo = template.findOne(new Query(), DatabaseInformation.class, "dbInfo");
+    	return dbInfo != null && dbInfo.containsLeanRuns();
     }
     
     public static DatabaseInformation getDatabaseInformation(String sModule) {
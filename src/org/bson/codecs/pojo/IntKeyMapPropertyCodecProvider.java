@@ -15,6 +15,9 @@
  */
 package org.bson.codecs.pojo;
 
+import org.bson.AbstractBsonReader.State;
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonBinaryReader;
 import org.bson.BsonReader;
 import org.bson.BsonType;
 import org.bson.BsonWriter;
@@ -22,6 +25,10 @@ import org.bson.codecs.Codec;
 import org.bson.codecs.DecoderContext;
 import org.bson.codecs.EncoderContext;
 import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.io.BsonInput;
+import org.bson.io.BsonInputMark;
+
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -30,6 +37,20 @@ import java.util.Map.Entry;
 /* Based on MongoDB's org.bson.codecs.pojo.MapPropertyCodecProvider, added to be able to support Maps with Integer keys */
 final public class IntKeyMapPropertyCodecProvider implements PropertyCodecProvider {
 
+    /** Whether or not sample genotypes shall only be decoded when accessed */
+    private final boolean fLazySampleGenotypeDecoding;
+
+    public IntKeyMapPropertyCodecProvider() {
+        this(false);
+    }
+
+    /**
+     * @param fLazySampleGenotypeDecoding if true, Map<Integer, SampleGenotype> properties are decoded into views over the raw BSON which only decode a SampleGenotype when it is looked up by sample ID
+     */
+    public IntKeyMapPropertyCodecProvider(boolean fLazySampleGenotypeDecoding) {
+        this.fLazySampleGenotypeDecoding = fLazySampleGenotypeDecoding;
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     @Override
     public <T> Codec<T> get(final TypeWithTypeParameters<T> type, final PropertyCodecRegistry registry) {
@@ -38,6 +59,9 @@ final public class IntKeyMapPropertyCodecProvider implements PropertyCodecProvid
             if (!keyType.equals(Integer.class))
             	return null;	/* is this good enough or should we return MapPropertyCodecProvider.get(type, registry) instead? */
 
+            if (type.getTypeParameters().get(1).getType().equals(SampleGenotype.class) && type.getType().isAssignableFrom(HashMap.class))
+            	return (Codec<T>) new SampleGenotypeMapCodec((Class) type.getType(), fLazySampleGenotypeDecoding);	// VariantRunData.sampleGenotypes: by far the most decoded field when exporting, so it gets a dedicated implementation
+
             try {
                 return new MapCodec(type.getType(), registry.get(type.getTypeParameters().get(1)));
             } catch (CodecConfigurationException e) {
@@ -55,6 +79,31 @@ final public class IntKeyMapPropertyCodecProvider implements PropertyCodecProvid
         }
     }
 
+    /**
+     * Parses a map key, throwing a BsonInvalidOperationException if it is not a valid int
+     */
+    static int parseKey(String sKey) {
+        try {
+            return Integer.parseInt(sKey);
+        }
+        catch (NumberFormatException nfe) {
+            throw invalidKey(sKey);
+        }
+    }
+
+    /**
+     * Checks a map key being parsed digit by digit from raw BSON, throwing a BsonInvalidOperationException as soon as it overflows an int
+     */
+    static long checkKey(long key) {
+        if (key > Integer.MAX_VALUE)
+            throw invalidKey(key + "...");
+        return key;
+    }
+
+    static BsonInvalidOperationException invalidKey(String sKey) {
+        return new BsonInvalidOperationException("Invalid Integer map key: '" + sKey + "'");
+    }
+
     private static class MapCodec<T> implements Codec<Map<Integer, T>> {
         private final Class<Map<Integer, T>> encoderClass;
         private final Codec<T> codec;
@@ -82,7 +131,7 @@ final public class IntKeyMapPropertyCodecProvider implements PropertyCodecProvid
             reader.readStartDocument();
             Map<Integer, T> map = getInstance();
             while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
-            	int keyAsInt = Integer.parseInt(reader.readName());
+            	int keyAsInt = parseKey(reader.readName());
                 if (reader.getCurrentBsonType() == BsonType.NULL) {
                     map.put(keyAsInt, null);
                     reader.readNull();
@@ -110,4 +159,111 @@ final public class IntKeyMapPropertyCodecProvider implements PropertyCodecProvid
             }
         }
     }
+
+    /**
+     * Codec dedicated to Map<Integer, SampleGenotype>: when reading from binary BSON, sample IDs are parsed directly from the field-name bytes,
+     * the map is presized according to the document length, and SampleGenotype objects are decoded by hand. Falls back to reader-based decoding
+     * whenever the raw contents contain something unexpected.
+     */
+    private static class SampleGenotypeMapCodec implements Codec<Map<Integer, SampleGenotype>> {
+        /* approximate size of a sample's entry in the sp sub-document when it holds nothing but a short genotype code */
+        private static final int TYPICAL_ENCODED_GENOTYPE_SIZE = 24;
+
+        private final Class<Map<Integer, SampleGenotype>> encoderClass;
+        private final boolean fLazy;
+        private final SampleGenotypeCodec sampleGenotypeCodec = new SampleGenotypeCodec();
+
+        SampleGenotypeMapCodec(final Class<Map<Integer, SampleGenotype>> encoderClass, boolean fLazy) {
+            this.encoderClass = encoderClass;
+            this.fLazy = fLazy;
+        }
+
+        @Override
+        public void encode(final BsonWriter writer, final Map<Integer, SampleGenotype> map, final EncoderContext encoderContext) {
+            writer.writeStartDocument();
+            for (final Entry<Integer, SampleGenotype> entry : map.entrySet()) {
+                writer.writeName(entry.getKey().toString());
+                if (entry.getValue() == null)
+                    writer.writeNull();
+                else
+                    sampleGenotypeCodec.encode(writer, entry.getValue(), encoderContext);
+            }
+            writer.writeEndDocument();
+        }
+
+        @Override
+        public Map<Integer, SampleGenotype> decode(final BsonReader reader, final DecoderContext context) {
+            if (reader instanceof BsonBinaryReader && ((BsonBinaryReader) reader).getState() == State.VALUE) {
+                BsonInput bsonInput = ((BsonBinaryReader) reader).getBsonInput();
+                BsonInputMark mark = bsonInput.getMark(Integer.MAX_VALUE);
+                Map<Integer, SampleGenotype> map = null;
+                if (fLazy) {
+                    byte[] rawDocument = new byte[bsonInput.readInt32()];
+                    mark.reset();
+                    bsonInput.readBytes(rawDocument);
+                    map = LazySampleGenotypeMap.wrap(rawDocument);
+                    mark.reset();
+                }
+                if (map == null)
+                    map = decodeRaw(bsonInput);
+                mark.reset();
+                if (map != null) {
+                    reader.skipValue();    // moves the reader past what we just consumed, keeping its state consistent
+                    return map;
+                }
+                // otherwise something unusual was found: go the slow way
+            }
+
+            reader.readStartDocument();
+            Map<Integer, SampleGenotype> map = new HashMap<>();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            	int keyAsInt = parseKey(reader.readName());
+                if (reader.getCurrentBsonType() == BsonType.NULL) {
+                    map.put(keyAsInt, null);
+                    reader.readNull();
+                }
+                else
+                	map.put(keyAsInt, sampleGenotypeCodec.decode(reader, context));
+            }
+            reader.readEndDocument();
+            return map;
+        }
+
+        private Map<Integer, SampleGenotype> decodeRaw(final BsonInput bsonInput) {
+            int nDocLength = bsonInput.readInt32();
+            Map<Integer, SampleGenotype> map = new HashMap<>((int) (nDocLength / TYPICAL_ENCODED_GENOTYPE_SIZE / .75f) + 1);
+            byte bsonType;
+            while ((bsonType = bsonInput.readByte()) != 0) {
+                long key = 0;
+                int nDigitCount = 0;
+                byte b;
+                while ((b = bsonInput.readByte()) != 0) {
+                    if (b < '0' || b > '9')
+                        return null;
+                    key = checkKey(key * 10 + (b - '0'));
+                    nDigitCount++;
+                }
+                if (nDigitCount == 0)
+                    throw invalidKey("");
+                int keyAsInt = (int) key;
+
+                if (bsonType == BsonType.NULL.getValue())
+                    map.put(keyAsInt, null);
+                else if (bsonType == BsonType.DOCUMENT.getValue()) {
+                    SampleGenotype sampleGenotype = SampleGenotypeCodec.decodeRaw(bsonInput);
+                    if (sampleGenotype == null)
+                        return null;
+                    map.put(keyAsInt, sampleGenotype);
+                }
+                else
+                    return null;
+            }
+            return map;
+        }
+
+        @Override
+        public Class<Map<Integer, SampleGenotype>> getEncoderClass() {
+            return encoderClass;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package org.bson.codecs.pojo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.ByteBufNIO;
+import org.bson.codecs.DecoderContext;
+import org.bson.io.ByteBufferBsonInput;
+
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+
+/**
+ * HashMap view over the raw BSON bytes of a VariantRunData's sp sub-document: a SampleGenotype only gets decoded when it is accessed by sample ID.
+ * Lookups (get, containsKey, size) are served from an index of sample IDs built when the map is created and leave the map untouched, so they may be called
+ * concurrently. Any other operation (iteration, modification...) first decodes all genotypes into the map, which then behaves like a regular HashMap.
+ */
+class LazySampleGenotypeMap extends java.util.HashMap<Integer, SampleGenotype> {
+
+	private static final long serialVersionUID = 3306316024640618817L;
+
+	private static final SampleGenotypeCodec sampleGenotypeCodec = new SampleGenotypeCodec();
+
+	/** Raw sp sub-document, including its leading length */
+	private final byte[] rawDocument;
+
+	/** One entry per sample, sorted: sample ID in the 32 high bits, offset of its value in rawDocument in the 32 low bits (-1 for null values). Set to null once materialized */
+	private volatile long[] index;
+
+	private LazySampleGenotypeMap(byte[] rawDocument, long[] index) {
+		this.rawDocument = rawDocument;
+		this.index = index;
+	}
+
+	/**
+	 * Builds a lazy map over the passed raw sp sub-document.
+	 *
+	 * @param rawDocument the raw sp sub-document, including its leading length
+	 * @return the map, or null if the document contains anything else than documents or nulls keyed by integers
+	 */
+	static LazySampleGenotypeMap wrap(byte[] rawDocument) {
+		ByteBuffer buffer = ByteBuffer.wrap(rawDocument).order(ByteOrder.LITTLE_ENDIAN);
+		long[] entries = new long[16];
+		int nEntryCount = 0, pos = 4;
+		byte bsonType;
+		while ((bsonType = rawDocument[pos++]) != 0) {
+			long key = 0;
+			int nKeyStart = pos;
+			byte b;
+			while ((b = rawDocument[pos++]) != 0) {
+				if (b < '0' || b > '9')
+					return null;
+				key = IntKeyMapPropertyCodecProvider.checkKey(key * 10 + (b - '0'));
+			}
+			if (pos == nKeyStart + 1)
+				throw IntKeyMapPropertyCodecProvider.invalidKey("");
+
+			int valueOffset = pos;
+			if (bsonType == BsonType.NULL.getValue())
+				valueOffset = -1;
+			else if (bsonType == BsonType.DOCUMENT.getValue())
+				pos += buffer.getInt(pos);
+			else
+				return null;
+
+			if (nEntryCount == entries.length)
+				entries = Arrays.copyOf(entries, nEntryCount * 2);
+			entries[nEntryCount++] = ((long) key << 32) | (valueOffset & 0xffffffffL);
+		}
+		long[] index = Arrays.copyOf(entries, nEntryCount);
+		Arrays.sort(index);
+		return new LazySampleGenotypeMap(rawDocument, index);
+	}
+
+	private boolean isMaterialized() {
+		return index == null;
+	}
+
+	private static int findIndexPosition(long[] index, Object key) {
+		if (!(key instanceof Integer))
+			return -1;
+		long wantedKey = (long) (Integer) key;
+		int low = 0, high = index.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midKey = index[mid] >> 32;
+			if (midKey < wantedKey)
+				low = mid + 1;
+			else if (midKey > wantedKey)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private SampleGenotype decodeAt(int valueOffset) {
+		if (valueOffset == -1)
+			return null;
+
+		ByteBufferBsonInput bsonInput = new ByteBufferBsonInput(new ByteBufNIO(ByteBuffer.wrap(rawDocument)));
+		bsonInput.skip(valueOffset);
+		SampleGenotype sampleGenotype = SampleGenotypeCodec.decodeRaw(bsonInput);
+		if (sampleGenotype == null) {	// unusual contents: let a reader handle them
+			int nLength = ByteBuffer.wrap(rawDocument).order(ByteOrder.LITTLE_ENDIAN).getInt(valueOffset);
+			BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(rawDocument, valueOffset, nLength).slice());
+			sampleGenotype = sampleGenotypeCodec.decode(reader, DecoderContext.builder().build());
+			reader.close();
+		}
+		return sampleGenotype;
+	}
+
+	/**
+	 * Decodes all genotypes and turns this object into a plain HashMap
+	 */
+	synchronized private void materialize() {
+		if (isMaterialized())
+			return;
+
+		for (long entry : index)
+			super.put((int) (entry >> 32), decodeAt((int) entry));
+		index = null;	// from now on, lookups are served by the HashMap itself
+	}
+
+	@Override
+	public SampleGenotype get(Object key) {
+		long[] entries = index;
+		if (entries == null)
+			return super.get(key);
+
+		int nPos = findIndexPosition(entries, key);
+		return nPos == -1 ? null : decodeAt((int) entries[nPos]);
+	}
+
+	@Override
+	public SampleGenotype getOrDefault(Object key, SampleGenotype defaultValue) {
+		if (isMaterialized())
+			return super.getOrDefault(key, defaultValue);
+		return containsKey(key) ? get(key) : defaultValue;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		long[] entries = index;
+		if (entries == null)
+			return super.containsKey(key);
+		return findIndexPosition(entries, key) != -1;
+	}
+
+	@Override
+	public int size() {
+		long[] entries = index;
+		return entries == null ? super.size() : entries.length;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public SampleGenotype put(Integer key, SampleGenotype value) {
+		materialize();
+		return super.put(key, value);
+	}
+
+	@Override
+	public void putAll(Map<? extends Integer, ? extends SampleGenotype> m) {
+		materialize();
+		super.putAll(m);
+	}
+
+	@Override
+	public SampleGenotype putIfAbsent(Integer key, SampleGenotype value) {
+		materialize();
+		return super.putIfAbsent(key, value);
+	}
+
+	@Override
+	public SampleGenotype remove(Object key) {
+		materialize();
+		return super.remove(key);
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		materialize();
+		return super.remove(key, value);
+	}
+
+	@Override
+	public void clear() {
+		materialize();
+		super.clear();
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		materialize();
+		return super.containsValue(value);
+	}
+
+	@Override
+	public Set<Integer> keySet() {
+		materialize();
+		return super.keySet();
+	}
+
+	@Override
+	public Collection<SampleGenotype> values() {
+		materialize();
+		return super.values();
+	}
+
+	@Override
+	public Set<Map.Entry<Integer, SampleGenotype>> entrySet() {
+		materialize();
+		return super.entrySet();
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super Integer, ? super SampleGenotype> action) {
+		materialize();
+		super.forEach(action);
+	}
+
+	@Override
+	public void replaceAll(BiFunction<? super Integer, ? super SampleGenotype, ? extends SampleGenotype> function) {
+		materialize();
+		super.replaceAll(function);
+	}
+
+	@Override
+	public SampleGenotype computeIfAbsent(Integer key, Function<? super Integer, ? extends SampleGenotype> mappingFunction) {
+		materialize();
+		return super.computeIfAbsent(key, mappingFunction);
+	}
+
+	@Override
+	public SampleGenotype computeIfPresent(Integer key, BiFunction<? super Integer, ? super SampleGenotype, ? extends SampleGenotype> remappingFunction) {
+		materialize();
+		return super.computeIfPresent(key, remappingFunction);
+	}
+
+	@Override
+	public SampleGenotype compute(Integer key, BiFunction<? super Integer, ? super SampleGenotype, ? extends SampleGenotype> remappingFunction) {
+		materialize();
+		return super.compute(key, remappingFunction);
+	}
+
+	@Override
+	public SampleGenotype merge(Integer key, SampleGenotype value, BiFunction<? super SampleGenotype, ? super SampleGenotype, ? extends SampleGenotype> remappingFunction) {
+		materialize();
+		return super.merge(key, value, remappingFunction);
+	}
+
+	@Override
+	public SampleGenotype replace(Integer key, SampleGenotype value) {
+		materialize();
+		return super.replace(key, value);
+	}
+
+	@Override
+	public boolean replace(Integer key, SampleGenotype oldValue, SampleGenotype newValue) {
+		materialize();
+		return super.replace(key, oldValue, newValue);
+	}
+
+	@Override
+	public Object clone() {
+		materialize();
+		return super.clone();
+	}
+}
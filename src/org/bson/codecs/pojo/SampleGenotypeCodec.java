@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * MGDB - Mongo Genotype DataBase
+ * Copyright (C) 2016 - 2019, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ *******************************************************************************/
+package org.bson.codecs.pojo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.BsonTypeCodecMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BsonInput;
+
+import com.mongodb.MongoClientSettings;
+
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+
+/**
+ * Hand-written codec for SampleGenotype, only knows about the "gt" and "ai" fields (much cheaper than going through the generic POJO machinery, which matters since we decode millions of these when exporting)
+ */
+public class SampleGenotypeCodec implements Codec<SampleGenotype> {
+
+    private static final CodecRegistry defaultCodecRegistry = MongoClientSettings.getDefaultCodecRegistry();
+    private static final BsonTypeCodecMap bsonTypeCodecMap = new BsonTypeCodecMap(new BsonTypeClassMap(), defaultCodecRegistry);
+
+    /* field names as they appear in BSON, used to recognize them without building Strings */
+    private static final byte[] GT_FIELD_BYTES = SampleGenotype.FIELDNAME_GENOTYPECODE.getBytes();
+    private static final byte[] AI_FIELD_BYTES = SampleGenotype.SECTION_ADDITIONAL_INFO.getBytes();
+
+    static final int FIELD_UNKNOWN = 0, FIELD_GT = 1, FIELD_AI = 2;
+
+    @Override
+    public void encode(final BsonWriter writer, final SampleGenotype sampleGenotype, final EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        if (sampleGenotype.getCode() != null)
+            writer.writeString(SampleGenotype.FIELDNAME_GENOTYPECODE, sampleGenotype.getCode());
+        HashMap<String, Object> additionalInfo = sampleGenotype.getAdditionalInfo();
+        if (!additionalInfo.isEmpty()) {
+            writer.writeName(SampleGenotype.SECTION_ADDITIONAL_INFO);
+            writer.writeStartDocument();
+            for (Map.Entry<String, Object> entry : additionalInfo.entrySet()) {
+                writer.writeName(entry.getKey());
+                if (entry.getValue() == null)
+                    writer.writeNull();
+                else
+                    encoderContext.encodeWithChildContext((Codec<Object>) defaultCodecRegistry.get(entry.getValue().getClass()), writer, entry.getValue());
+            }
+            writer.writeEndDocument();
+        }
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public SampleGenotype decode(final BsonReader reader, final DecoderContext decoderContext) {
+        SampleGenotype sampleGenotype = new SampleGenotype();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String fieldName = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL)
+                reader.readNull();
+            else if (SampleGenotype.FIELDNAME_GENOTYPECODE.equals(fieldName))
+                sampleGenotype.setCode(reader.readString());
+            else if (SampleGenotype.SECTION_ADDITIONAL_INFO.equals(fieldName))
+                sampleGenotype.setAdditionalInfo(decodeAdditionalInfo(reader, decoderContext));
+            else
+                reader.skipValue();
+        }
+        reader.readEndDocument();
+        return sampleGenotype;
+    }
+
+    private HashMap<String, Object> decodeAdditionalInfo(final BsonReader reader, final DecoderContext decoderContext) {
+        HashMap<String, Object> additionalInfo = new HashMap<>();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String key = reader.readName();
+            switch (reader.getCurrentBsonType()) {
+                case NULL:
+                    reader.readNull();
+                    additionalInfo.put(key, null);
+                    break;
+                case INT32:
+                    additionalInfo.put(key, reader.readInt32());
+                    break;
+                case INT64:
+                    additionalInfo.put(key, reader.readInt64());
+                    break;
+                case DOUBLE:
+                    additionalInfo.put(key, reader.readDouble());
+                    break;
+                case STRING:
+                    additionalInfo.put(key, reader.readString());
+                    break;
+                case BOOLEAN:
+                    additionalInfo.put(key, reader.readBoolean());
+                    break;
+                default:
+                    additionalInfo.put(key, decoderContext.decodeWithChildContext(bsonTypeCodecMap.get(reader.getCurrentBsonType()), reader));
+            }
+        }
+        reader.readEndDocument();
+        return additionalInfo;
+    }
+
+    /**
+     * Decodes a SampleGenotype straight from the underlying BSON bytes. The input must be positioned at the start of the embedded document.
+     *
+     * @param bsonInput the BSON input
+     * @return the SampleGenotype, or null if the document contains something we don't know how to handle (caller is then expected to rewind and fall back to decode())
+     */
+    static SampleGenotype decodeRaw(final BsonInput bsonInput) {
+        bsonInput.readInt32();  // document length, not needed
+        SampleGenotype sampleGenotype = new SampleGenotype();
+        byte bsonType;
+        while ((bsonType = bsonInput.readByte()) != 0) {
+            int field = readKnownFieldName(bsonInput);
+            if (bsonType == BsonType.NULL.getValue())
+                continue;
+            if (field == FIELD_GT && bsonType == BsonType.STRING.getValue())
+                sampleGenotype.setCode(bsonInput.readString());
+            else if (field == FIELD_AI && bsonType == BsonType.DOCUMENT.getValue()) {
+                HashMap<String, Object> additionalInfo = decodeRawAdditionalInfo(bsonInput);
+                if (additionalInfo == null)
+                    return null;
+                sampleGenotype.setAdditionalInfo(additionalInfo);
+            }
+            else
+                return null;
+        }
+        return sampleGenotype;
+    }
+
+    private static HashMap<String, Object> decodeRawAdditionalInfo(final BsonInput bsonInput) {
+        bsonInput.readInt32();  // document length, not needed
+        HashMap<String, Object> additionalInfo = new HashMap<>();
+        byte bsonType;
+        while ((bsonType = bsonInput.readByte()) != 0) {
+            String key = bsonInput.readCString();
+            switch (BsonType.findByValue(bsonType)) {
+                case NULL:
+                    additionalInfo.put(key, null);
+                    break;
+                case INT32:
+                    additionalInfo.put(key, bsonInput.readInt32());
+                    break;
+                case INT64:
+                    additionalInfo.put(key, bsonInput.readInt64());
+                    break;
+                case DOUBLE:
+                    additionalInfo.put(key, bsonInput.readDouble());
+                    break;
+                case STRING:
+                    additionalInfo.put(key, bsonInput.readString());
+                    break;
+                case BOOLEAN:
+                    additionalInfo.put(key, bsonInput.readByte() == 1);
+                    break;
+                default:
+                    return null;    // nested documents, arrays etc. are left to the reader-based implementation
+            }
+        }
+        return additionalInfo;
+    }
+
+    /**
+     * Consumes a field name and tells whether it is one of those we know, without allocating a String for it
+     */
+    private static int readKnownFieldName(final BsonInput bsonInput) {
+        byte b = bsonInput.readByte();
+        byte[] candidate = b == GT_FIELD_BYTES[0] ? GT_FIELD_BYTES : (b == AI_FIELD_BYTES[0] ? AI_FIELD_BYTES : null);
+        int i = 1;
+        while (b != 0) {
+            b = bsonInput.readByte();
+            if (candidate != null && (i >= candidate.length ? b != 0 : b != candidate[i]))
+                candidate = null;
+            i++;
+        }
+        return candidate == GT_FIELD_BYTES ? FIELD_GT : (candidate == AI_FIELD_BYTES ? FIELD_AI : FIELD_UNKNOWN);
+    }
+
+    @Override
+    public Class<SampleGenotype> getEncoderClass() {
+        return SampleGenotype.class;
+    }
+}